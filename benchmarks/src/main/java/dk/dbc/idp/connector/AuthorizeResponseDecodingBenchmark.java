@@ -0,0 +1,57 @@
+package dk.dbc.idp.connector;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decoding authorize responses with the connector's Jackson
+ * configuration, compared with the streaming decoder used by the connector
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AuthorizeResponseDecodingBenchmark {
+    @Param({"1", "10", "100", "500"})
+    public int numberOfRights;
+
+    private byte[] json;
+    private ObjectReader reader;
+
+    @Setup
+    public void setUp() {
+        json = IdpStub.authorizeResponse(numberOfRights).getBytes(StandardCharsets.UTF_8);
+        reader = new JacksonConfig().getContext(AuthorizeResponse.class).readerFor(AuthorizeResponse.class);
+    }
+
+    @Benchmark
+    public AuthorizeResponse decode() throws IOException {
+        return reader.readValue(json);
+    }
+
+    @Benchmark
+    public Authorization decodeToAuthorization() throws IOException {
+        return Authorization.of(reader.readValue(json));
+    }
+
+    @Benchmark
+    public Authorization decodeStreaming() throws IOException {
+        return AuthorizationDecoder.decode(json);
+    }
+}
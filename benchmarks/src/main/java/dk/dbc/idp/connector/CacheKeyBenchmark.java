@@ -0,0 +1,40 @@
+package dk.dbc.idp.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building cache keys, compared to the String.format keys used
+ * before {@link CacheKey}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheKeyBenchmark {
+    private final CacheKey.Factory factory = new CacheKey.Factory();
+    private final String user = "netpunktuser";
+    private final String group = "710100";
+    private final String password = "correct horse battery staple";
+
+    @Benchmark
+    public CacheKey cacheKey() {
+        return factory.create(user, group, password);
+    }
+
+    @Benchmark
+    public String formattedKey() {
+        return String.format("%s_%s_%s", user, group, password);
+    }
+}
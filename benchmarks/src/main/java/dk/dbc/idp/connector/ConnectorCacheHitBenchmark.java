@@ -0,0 +1,141 @@
+package dk.dbc.idp.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of authenticate and lookupRight answered from the cache,
+ * single threaded, with 2, 4, 8 and 16 contending threads, and with as many
+ * threads as there are processors, so scaling with contention can be read
+ * from the results
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectorCacheHitBenchmark {
+    private static final int USERS = 1000;
+    private static final String[] USER_NAMES = new String[USERS];
+
+    static {
+        for (int i = 0; i < USERS; i++) {
+            USER_NAMES[i] = "user" + i;
+        }
+    }
+
+    private IdpStub idpStub;
+    private IDPConnector connector;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, IDPConnectorException {
+        idpStub = new IdpStub(20);
+        connector = IDPConnectorFactory.create(idpStub.getBaseUrl(), new IDPConnectorSettings());
+        for (int i = 0; i < USERS; i++) {
+            connector.authenticate(user(i), "710100", "password");
+            connector.lookupRight(user(i), "710100", "password");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connector.close();
+        idpStub.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean authenticate() throws IDPConnectorException {
+        return connector.authenticate(randomUser(), "710100", "password");
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean authenticate2Threads() throws IDPConnectorException {
+        return connector.authenticate(randomUser(), "710100", "password");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean authenticate4Threads() throws IDPConnectorException {
+        return connector.authenticate(randomUser(), "710100", "password");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean authenticate8Threads() throws IDPConnectorException {
+        return connector.authenticate(randomUser(), "710100", "password");
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean authenticate16Threads() throws IDPConnectorException {
+        return connector.authenticate(randomUser(), "710100", "password");
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean authenticateContended() throws IDPConnectorException {
+        return connector.authenticate(randomUser(), "710100", "password");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean lookupRight() throws IDPConnectorException {
+        return connector.lookupRight(randomUser(), "710100", "password").hasRight("PRODUCT3", "READ");
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean lookupRight2Threads() throws IDPConnectorException {
+        return connector.lookupRight(randomUser(), "710100", "password").hasRight("PRODUCT3", "READ");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean lookupRight4Threads() throws IDPConnectorException {
+        return connector.lookupRight(randomUser(), "710100", "password").hasRight("PRODUCT3", "READ");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean lookupRight8Threads() throws IDPConnectorException {
+        return connector.lookupRight(randomUser(), "710100", "password").hasRight("PRODUCT3", "READ");
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean lookupRight16Threads() throws IDPConnectorException {
+        return connector.lookupRight(randomUser(), "710100", "password").hasRight("PRODUCT3", "READ");
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean lookupRightContended() throws IDPConnectorException {
+        return connector.lookupRight(randomUser(), "710100", "password").hasRight("PRODUCT3", "READ");
+    }
+
+    private static String randomUser() {
+        return user(ThreadLocalRandom.current().nextInt(USERS));
+    }
+
+    private static String user(int i) {
+        return USER_NAMES[i];
+    }
+}
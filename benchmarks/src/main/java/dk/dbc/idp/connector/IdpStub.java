@@ -0,0 +1,71 @@
+package dk.dbc.idp.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process stand-in for the IDP service
+ * <p>
+ * Answers every authenticate request with an authenticated response and
+ * every authorize request with a fixed number of rights.
+ * </p>
+ */
+class IdpStub implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    IdpStub(int numberOfRights) throws IOException {
+        final byte[] authenticateResponse =
+                "{\"authenticated\":true,\"agencyId\":\"710100\",\"identity\":\"user\"}"
+                        .getBytes(StandardCharsets.UTF_8);
+        final byte[] authorizeResponse = authorizeResponse(numberOfRights).getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/v1/authenticate/", exchange -> respond(exchange, authenticateResponse));
+        server.createContext("/api/v1/authorize/", exchange -> respond(exchange, authorizeResponse));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    static String authorizeResponse(int numberOfRights) {
+        final StringBuilder json = new StringBuilder(
+                "{\"authenticated\":true,\"agencyId\":\"710100\",\"identity\":\"user\",\"rights\":[");
+        for (int i = 0; i < numberOfRights; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"productName\":\"PRODUCT").append(i / 2)
+                    .append("\",\"name\":\"").append(i % 2 == 0 ? "READ" : "WRITE")
+                    .append("\",\"description\":\"Is allowed to use product ").append(i / 2).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        try (InputStream request = exchange.getRequestBody()) {
+            request.readAllBytes();
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream response = exchange.getResponseBody()) {
+            response.write(body);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package dk.dbc.idp.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building a {@link IDPConnector.RightSet} from the rights of a
+ * response, and of looking up rights in it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RightSetBenchmark {
+    @Param({"1", "10", "100", "500"})
+    public int numberOfRights;
+
+    private List<IDPRights> idpRights;
+    private IDPConnector.RightSet rightSet;
+    private String presentProduct;
+    private String absentProduct;
+
+    @Setup
+    public void setUp() {
+        idpRights = new ArrayList<>(numberOfRights);
+        for (int i = 0; i < numberOfRights; i++) {
+            final IDPRights idpRight = new IDPRights();
+            idpRight.setProductName("PRODUCT" + i / 2);
+            idpRight.setName(i % 2 == 0 ? "READ" : "WRITE");
+            idpRight.setDescription("Is allowed to use product " + i / 2);
+            idpRights.add(idpRight);
+        }
+        rightSet = IDPConnector.RightSet.of(idpRights);
+        // fresh string instances, as handed to the connector by callers
+        presentProduct = new String("PRODUCT" + (numberOfRights - 1) / 2);
+        absentProduct = new String("NO-SUCH-PRODUCT");
+    }
+
+    @Benchmark
+    public IDPConnector.RightSet build() {
+        return IDPConnector.RightSet.of(idpRights);
+    }
+
+    @Benchmark
+    public boolean hasRightPresent() {
+        return rightSet.hasRight(presentProduct, "READ");
+    }
+
+    @Benchmark
+    public boolean hasRightAbsent() {
+        return rightSet.hasRight(absentProduct, "READ");
+    }
+
+    @Benchmark
+    public boolean hasRightName() {
+        return rightSet.hasRightName(presentProduct);
+    }
+}
@@ -0,0 +1,90 @@
+package dk.dbc.idp.connector;
+
+/**
+ * Immutable digest of an {@link AuthorizeResponse} as held by the cache
+ * <p>
+ * The rights are collected into an {@link IDPConnector.RightSet} once, when
+ * the response is received, so lookups answered from the cache allocate nothing.
+ * </p>
+ * <p>
+ * The caching headers of the response are kept along, so the authorization
+ * can be revalidated with the IDP. They are part of the serialized form, so
+ * authorizations shared through the second level cache or a snapshot keep
+ * the max-age of the IDP and are revalidated rather than fetched in full
+ * when they expire.
+ * </p>
+ */
+final class Authorization {
+    /**
+     * Answer for credentials rejected without asking the IDP
+     */
+    static final Authorization REJECTED = new Authorization(false, null, null, IDPConnector.RightSet.EMPTY);
+
+    private final boolean authenticated;
+    private final String agencyId;
+    private final String identity;
+    private final IDPConnector.RightSet rights;
+    private final CacheDirectives directives;
+
+    Authorization(boolean authenticated, String agencyId, String identity, IDPConnector.RightSet rights) {
+        this(authenticated, agencyId, identity, rights, CacheDirectives.NONE);
+    }
+
+    private Authorization(boolean authenticated, String agencyId, String identity, IDPConnector.RightSet rights,
+                          CacheDirectives directives) {
+        this.authenticated = authenticated;
+        this.agencyId = agencyId;
+        this.identity = identity;
+        this.rights = rights;
+        this.directives = directives;
+    }
+
+    static Authorization of(AuthorizeResponse response) {
+        return new Authorization(response.isAuthenticated(), response.getAgencyId(), response.getIdentity(),
+                response.isAuthenticated() ? IDPConnector.RightSet.of(response.getRights()) : IDPConnector.RightSet.EMPTY);
+    }
+
+    boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    String getAgencyId() {
+        return agencyId;
+    }
+
+    String getIdentity() {
+        return identity;
+    }
+
+    /**
+     * @return rights of an authenticated user, empty if not authenticated
+     */
+    IDPConnector.RightSet getRights() {
+        return rights;
+    }
+
+    /**
+     * @return caching headers of the response this authorization came from
+     */
+    CacheDirectives getDirectives() {
+        return directives;
+    }
+
+    /**
+     * @param directives caching headers of a response
+     * @return this authorization as given by a response with those headers
+     */
+    Authorization withDirectives(CacheDirectives directives) {
+        return new Authorization(authenticated, agencyId, identity, rights, directives);
+    }
+
+    @Override
+    public String toString() {
+        return "Authorization{" +
+                "authenticated=" + authenticated +
+                ", agencyId='" + agencyId + '\'' +
+                ", identity='" + identity + '\'' +
+                ", rights=" + rights +
+                '}';
+    }
+}
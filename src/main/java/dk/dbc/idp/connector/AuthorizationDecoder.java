@@ -0,0 +1,114 @@
+package dk.dbc.idp.connector;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder of authorize responses
+ * <p>
+ * Reads the JSON of an {@link AuthorizeResponse} token by token straight into
+ * an {@link Authorization}, without building the response and its list of
+ * {@link IDPRights} first. Descriptions of rights and unknown fields are
+ * skipped without being turned into strings. The reader is configured once
+ * and shared, so parsers come with Jackson's recycled buffers.
+ * </p>
+ */
+final class AuthorizationDecoder {
+    private static final ObjectReader READER = new JacksonConfig().getContext(AuthorizeResponse.class).reader();
+
+    private AuthorizationDecoder() {}
+
+    /**
+     * @param in JSON of an authorize response, not closed
+     * @return the authorization, or null if the JSON is null
+     * @throws IOException on malformed JSON or failure to read
+     */
+    static Authorization decode(InputStream in) throws IOException {
+        try (JsonParser parser = READER.createParser(in)) {
+            return decode(parser);
+        }
+    }
+
+    static Authorization decode(byte[] json) throws IOException {
+        try (JsonParser parser = READER.createParser(json)) {
+            return decode(parser);
+        }
+    }
+
+    private static Authorization decode(JsonParser parser) throws IOException {
+        final JsonToken first = parser.nextToken();
+        if (first == null || first == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        expect(parser, first, JsonToken.START_OBJECT);
+        boolean authenticated = false;
+        String agencyId = null;
+        String identity = null;
+        IDPConnector.RightSet rights = IDPConnector.RightSet.EMPTY;
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            final JsonToken value = parser.nextToken();
+            switch (field) {
+                case "authenticated":
+                    authenticated = value == JsonToken.VALUE_TRUE;
+                    break;
+                case "agencyId":
+                    agencyId = parser.getValueAsString();
+                    break;
+                case "identity":
+                    identity = parser.getValueAsString();
+                    break;
+                case "rights":
+                    rights = decodeRights(parser, value);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+        // Rights of users not authenticated are never looked at
+        return new Authorization(authenticated, agencyId, identity,
+                authenticated ? rights : IDPConnector.RightSet.EMPTY);
+    }
+
+    private static IDPConnector.RightSet decodeRights(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return IDPConnector.RightSet.EMPTY;
+        }
+        expect(parser, value, JsonToken.START_ARRAY);
+        final IDPConnector.RightSet.Builder builder = new IDPConnector.RightSet.Builder();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            expect(parser, token, JsonToken.START_OBJECT);
+            String productName = null;
+            String name = null;
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                parser.nextToken();
+                switch (field) {
+                    case "productName":
+                        productName = parser.getValueAsString();
+                        break;
+                    case "name":
+                        name = parser.getValueAsString();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            builder.add(productName, name);
+        }
+        return builder.build();
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException(String.format("Expected %s but found %s at %s",
+                    expected, actual, parser.getCurrentLocation()));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package dk.dbc.idp.connector;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary encoding of cached values, shared by cache snapshots and
+ * remote caches
+ * <p>
+ * Only values of authenticated users are cached, so the authenticated flag
+ * is not encoded. Authorizations keep the caching headers of the IDP, so
+ * their max-age and validators survive being shared or restored.
+ * </p>
+ */
+final class CacheCodec {
+    private CacheCodec() {}
+
+    static void writeAuthenticateResponse(DataOutput out, AuthenticateResponse response) throws IOException {
+        writeNullable(out, response.getAgencyId());
+        writeNullable(out, response.getIdentity());
+    }
+
+    static AuthenticateResponse readAuthenticateResponse(DataInput in) throws IOException {
+        final AuthenticateResponse response = new AuthenticateResponse();
+        response.setAuthenticated(true);
+        response.setAgencyId(readNullable(in));
+        response.setIdentity(readNullable(in));
+        return response;
+    }
+
+    static void writeAuthorization(DataOutput out, Authorization authorization) throws IOException {
+        writeNullable(out, authorization.getAgencyId());
+        writeNullable(out, authorization.getIdentity());
+        final Map<String, Set<String>> rights = authorization.getRights().rights;
+        out.writeInt(rights.size());
+        for (Map.Entry<String, Set<String>> product : rights.entrySet()) {
+            out.writeUTF(product.getKey());
+            out.writeInt(product.getValue().size());
+            for (String name : product.getValue()) {
+                out.writeUTF(name);
+            }
+        }
+        final CacheDirectives directives = authorization.getDirectives();
+        out.writeLong(directives.getMaxAge() != null ? directives.getMaxAge().toSeconds() : -1);
+        writeNullable(out, directives.getEntityTag());
+        writeNullable(out, directives.getLastModified());
+    }
+
+    static Authorization readAuthorization(DataInput in) throws IOException {
+        final String agencyId = readNullable(in);
+        final String identity = readNullable(in);
+        final IDPConnector.RightSet.Builder rights = new IDPConnector.RightSet.Builder();
+        for (int products = in.readInt(); products > 0; products--) {
+            final String productName = in.readUTF();
+            final int names = in.readInt();
+            if (names == 0) {
+                rights.add(productName, null);
+            }
+            for (int i = 0; i < names; i++) {
+                rights.add(productName, in.readUTF());
+            }
+        }
+        final Authorization authorization = new Authorization(true, agencyId, identity, rights.build());
+        final long maxAge = in.readLong();
+        final String entityTag = readNullable(in);
+        final String lastModified = readNullable(in);
+        if (maxAge < 0 && entityTag == null && lastModified == null) {
+            return authorization;
+        }
+        return authorization.withDirectives(
+                new CacheDirectives(maxAge < 0 ? null : Duration.ofSeconds(maxAge), entityTag, lastModified));
+    }
+
+    private static void writeNullable(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
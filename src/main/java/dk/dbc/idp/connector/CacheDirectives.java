@@ -0,0 +1,123 @@
+package dk.dbc.idp.connector;
+
+import jakarta.ws.rs.core.Response;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP caching headers of an IDP response
+ * <p>
+ * Holds the freshness lifetime given by {@code Cache-Control} along with the
+ * {@code ETag} and {@code Last-Modified} validators, which let a cached
+ * response be revalidated by a conditional request instead of fetched again.
+ * </p>
+ */
+final class CacheDirectives {
+    static final CacheDirectives NONE = new CacheDirectives(null, null, null);
+
+    private final Duration maxAge;
+    private final String entityTag;
+    private final String lastModified;
+
+    CacheDirectives(Duration maxAge, String entityTag, String lastModified) {
+        this.maxAge = maxAge;
+        this.entityTag = entityTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param response IDP response
+     * @return caching headers of the response
+     */
+    static CacheDirectives of(Response response) {
+        final Duration maxAge = parseMaxAge(response.getHeaderString("Cache-Control"));
+        final String entityTag = response.getHeaderString("ETag");
+        final String lastModified = response.getHeaderString("Last-Modified");
+        if (maxAge == null && entityTag == null && lastModified == null) {
+            return NONE;
+        }
+        return new CacheDirectives(maxAge, entityTag, lastModified);
+    }
+
+    /* no-store and no-cache both leave nothing to answer from the cache,
+     * a malformed max-age is ignored as if absent.
+     */
+    static Duration parseMaxAge(String cacheControl) {
+        if (cacheControl == null) {
+            return null;
+        }
+        Duration maxAge = null;
+        for (String directive : cacheControl.split(",")) {
+            final String normalized = directive.trim().toLowerCase(Locale.ROOT);
+            if (normalized.equals("no-store") || normalized.equals("no-cache")) {
+                return Duration.ZERO;
+            }
+            if (normalized.startsWith("max-age=")) {
+                final String seconds = normalized.substring("max-age=".length()).replace("\"", "");
+                try {
+                    maxAge = Duration.ofSeconds(Math.max(0, Long.parseLong(seconds)));
+                } catch (NumberFormatException e) {
+                    maxAge = null;
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    /**
+     * Combines the headers of a 304 response with the max-age and validators
+     * of the response it revalidated, which the 304 need not repeat
+     * @param previous headers of the revalidated response
+     * @return headers of the revalidated response from now on
+     */
+    CacheDirectives revalidating(CacheDirectives previous) {
+        return new CacheDirectives(maxAge != null ? maxAge : previous.maxAge,
+                entityTag != null ? entityTag : previous.entityTag,
+                lastModified != null ? lastModified : previous.lastModified);
+    }
+
+    /**
+     * @return freshness lifetime given by the IDP, or null to use the configured cache age
+     */
+    Duration getMaxAge() {
+        return maxAge;
+    }
+
+    String getEntityTag() {
+        return entityTag;
+    }
+
+    String getLastModified() {
+        return lastModified;
+    }
+
+    boolean hasValidators() {
+        return entityTag != null || lastModified != null;
+    }
+
+    /**
+     * @return headers making a request conditional on the response having changed
+     */
+    Map<String, String> conditionalHeaders() {
+        final Map<String, String> headers = new LinkedHashMap<>(2);
+        if (entityTag != null) {
+            headers.put("If-None-Match", entityTag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheDirectives{" +
+                "maxAge=" + maxAge +
+                ", entityTag='" + entityTag + '\'' +
+                ", lastModified='" + lastModified + '\'' +
+                '}';
+    }
+}
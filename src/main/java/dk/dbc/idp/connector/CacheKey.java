@@ -0,0 +1,240 @@
+package dk.dbc.idp.connector;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache key of a netpunkt triple
+ * <p>
+ * Holds user and group as is, but only a keyed HMAC-SHA256 digest of the
+ * password, so cached credentials cannot be read from a heap dump.
+ * The hash code is computed once, and since the components are compared
+ * separately, user or group values containing separators cannot collide.
+ * </p>
+ */
+final class CacheKey {
+    private static final int MINIMUM_SECRET_LENGTH = 16;
+
+    private final String user;
+    private final String group;
+    private final long digest0;
+    private final long digest1;
+    private final long digest2;
+    private final long digest3;
+    private final int hash;
+
+    CacheKey(String user, String group, long digest0, long digest1, long digest2, long digest3) {
+        this.user = user;
+        this.group = group;
+        this.digest0 = digest0;
+        this.digest1 = digest1;
+        this.digest2 = digest2;
+        this.digest3 = digest3;
+        this.hash = 31 * (31 * user.hashCode() + group.hashCode()) + Long.hashCode(digest0);
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    String getGroup() {
+        return group;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(user);
+        out.writeUTF(group);
+        out.writeLong(digest0);
+        out.writeLong(digest1);
+        out.writeLong(digest2);
+        out.writeLong(digest3);
+    }
+
+    static CacheKey readFrom(DataInput in) throws IOException {
+        return new CacheKey(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    /**
+     * @return key as a string for remote caches, which can be turned
+     * back into this key by {@link #fromRemoteKey(String)}
+     */
+    String toRemoteKey() {
+        return URLEncoder.encode(user, StandardCharsets.UTF_8) + '/'
+                + URLEncoder.encode(group, StandardCharsets.UTF_8) + '/'
+                + String.format("%016x%016x%016x%016x", digest0, digest1, digest2, digest3);
+    }
+
+    static CacheKey fromRemoteKey(String remoteKey) {
+        final String[] parts = remoteKey.split("/", -1);
+        if (parts.length != 3 || parts[2].length() != 64) {
+            throw new IllegalArgumentException("Not a remote cache key: " + remoteKey);
+        }
+        return new CacheKey(URLDecoder.decode(parts[0], StandardCharsets.UTF_8),
+                URLDecoder.decode(parts[1], StandardCharsets.UTF_8),
+                Long.parseUnsignedLong(parts[2].substring(0, 16), 16),
+                Long.parseUnsignedLong(parts[2].substring(16, 32), 16),
+                Long.parseUnsignedLong(parts[2].substring(32, 48), 16),
+                Long.parseUnsignedLong(parts[2].substring(48, 64), 16));
+    }
+
+    static void checkSecret(byte[] secret) {
+        if (secret.length < MINIMUM_SECRET_LENGTH) {
+            throw new IllegalArgumentException(
+                    "cache secret must be at least " + MINIMUM_SECRET_LENGTH + " bytes");
+        }
+    }
+
+    /**
+     * @param secret configured cache secret
+     * @param purpose what the key is used for
+     * @return 256 bit key for the purpose, unrelated to keys for other purposes
+     */
+    static byte[] deriveKey(byte[] secret, String purpose) {
+        checkSecret(secret);
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(purpose.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CacheKey that = (CacheKey) o;
+        return hash == that.hash
+                && digest0 == that.digest0 && digest1 == that.digest1
+                && digest2 == that.digest2 && digest3 == that.digest3
+                && user.equals(that.user) && group.equals(that.group);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheKey{" +
+                "user='" + user + '\'' +
+                ", group='" + group + '\'' +
+                ", password='******'" +
+                '}';
+    }
+
+    /**
+     * Creates cache keys using a secret HMAC key
+     * <p>
+     * Keys are created with a fixed set of initialized {@link Mac}s and output
+     * buffers, a few per processor, each used by one thread at a time. Unlike
+     * a {@link Mac} per thread, this does not pay for a new one on every call
+     * when calls run on virtual threads, so creating a key allocates nothing
+     * but the key itself.
+     * </p>
+     */
+    static class Factory {
+        private static final String ALGORITHM = "HmacSHA256";
+        private static final int SECRET_LENGTH = 32;
+
+        private final State[] stripes;
+
+        /**
+         * Creates factory with a random secret, keys are only comparable
+         * with keys from the same factory
+         */
+        Factory() {
+            this(randomSecret());
+        }
+
+        /**
+         * @param cacheSecret configured cache secret
+         * @return factory whose keys equal those of any factory created from the same secret
+         */
+        static Factory fromCacheSecret(byte[] cacheSecret) {
+            return new Factory(deriveKey(cacheSecret, "cache-key"));
+        }
+
+        Factory(byte[] secret) {
+            final SecretKeySpec keySpec = new SecretKeySpec(secret, ALGORITHM);
+            this.stripes = new State[Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) << 1];
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new State(keySpec);
+            }
+        }
+
+        CacheKey create(String user, String group, String password) {
+            final State state = acquire();
+            try {
+                final Mac mac = state.mac;
+                for (int i = 0; i < password.length(); i++) {
+                    final char c = password.charAt(i);
+                    mac.update((byte) (c >>> 8));
+                    mac.update((byte) c);
+                }
+                try {
+                    mac.doFinal(state.digest, 0);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+                final ByteBuffer digest = state.buffer;
+                return new CacheKey(user, group,
+                        digest.getLong(0), digest.getLong(8), digest.getLong(16), digest.getLong(24));
+            } finally {
+                state.lock.unlock();
+            }
+        }
+
+        /* Starts at the stripe of the current thread and takes the first one
+         * free, only waiting when all stripes are in use
+         */
+        private State acquire() {
+            final int start = (int) Thread.currentThread().threadId();
+            for (int i = 0; i < stripes.length; i++) {
+                final State state = stripes[(start + i) & (stripes.length - 1)];
+                if (state.lock.tryLock()) {
+                    return state;
+                }
+            }
+            final State state = stripes[start & (stripes.length - 1)];
+            state.lock.lock();
+            return state;
+        }
+
+        private static byte[] randomSecret() {
+            final byte[] secret = new byte[SECRET_LENGTH];
+            new SecureRandom().nextBytes(secret);
+            return secret;
+        }
+
+        private static final class State {
+            final ReentrantLock lock = new ReentrantLock();
+            final Mac mac;
+            final byte[] digest;
+            final ByteBuffer buffer;
+
+            State(SecretKeySpec keySpec) {
+                try {
+                    mac = Mac.getInstance(ALGORITHM);
+                    mac.init(keySpec);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+                digest = new byte[mac.getMacLength()];
+                buffer = ByteBuffer.wrap(digest);
+            }
+        }
+    }
+}
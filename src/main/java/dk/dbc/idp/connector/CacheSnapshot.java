@@ -0,0 +1,181 @@
+package dk.dbc.idp.connector;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Encrypted file snapshot of the caches of a connector
+ * <p>
+ * Lets a restarted connector start with the entries its predecessor had
+ * cached, instead of sending every user to the IDP at once. Entries are keyed
+ * as in the cache, by user, group and keyed password digest, so passwords are
+ * never written. The payload is encrypted with AES-GCM, hiding who is cached
+ * and their rights, and a tampered or truncated file is rejected as a whole.
+ * </p>
+ * <p>
+ * The digest key and the encryption key are both derived from the configured
+ * cache secret, which must stay the same across restarts for snapshots to be usable.
+ * </p>
+ * <pre>
+ *     file    := magic version nonce ciphertext
+ *     payload := takenAt(epoch millis) count authenticate* count authorize*
+ * </pre>
+ */
+class CacheSnapshot {
+    private static final int MAGIC = 0x49445053;
+    private static final int VERSION = 2;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final int HEADER_LENGTH = 8 + NONCE_LENGTH;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+
+    private final Path file;
+    private final SecretKeySpec encryptionKey;
+    private final SecureRandom random = new SecureRandom();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * @param file snapshot file
+     * @param secret cache secret shared by all generations of the connector
+     */
+    CacheSnapshot(Path file, byte[] secret) {
+        this.file = file;
+        this.encryptionKey = new SecretKeySpec(CacheKey.deriveKey(secret, "snapshot-encryption"), "AES");
+    }
+
+    /**
+     * Writes fresh entries of the caches, replacing any previous snapshot atomically
+     * <p>
+     * Writing the file is serialized, as all writes go through the same temporary file.
+     * </p>
+     * @param authenticateCache authenticate cache
+     * @param authorizeCache authorize cache
+     * @return number of entries written
+     * @throws IOException on failure to write the file
+     */
+    int write(ExpiringCache<CacheKey, AuthenticateResponse> authenticateCache,
+              ExpiringCache<CacheKey, Authorization> authorizeCache) throws IOException {
+        final List<Map.Entry<CacheKey, ExpiringCache.Entry<AuthenticateResponse>>> authenticated = new ArrayList<>();
+        authenticateCache.forEachFresh((key, entry) -> authenticated.add(Map.entry(key, entry)));
+        final List<Map.Entry<CacheKey, ExpiringCache.Entry<Authorization>>> authorized = new ArrayList<>();
+        authorizeCache.forEachFresh((key, entry) -> authorized.add(Map.entry(key, entry)));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(authenticated.size());
+            for (Map.Entry<CacheKey, ExpiringCache.Entry<AuthenticateResponse>> e : authenticated) {
+                e.getKey().writeTo(out);
+                out.writeLong(authenticateCache.ageOf(e.getValue()));
+                CacheCodec.writeAuthenticateResponse(out, e.getValue().value);
+            }
+            out.writeInt(authorized.size());
+            for (Map.Entry<CacheKey, ExpiringCache.Entry<Authorization>> e : authorized) {
+                e.getKey().writeTo(out);
+                out.writeLong(authorizeCache.ageOf(e.getValue()));
+                CacheCodec.writeAuthorization(out, e.getValue().value);
+            }
+        }
+
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH)
+                .putInt(MAGIC).putInt(VERSION).put(nonce).flip();
+        final ByteBuffer ciphertext = ByteBuffer.wrap(crypt(Cipher.ENCRYPT_MODE, nonce, header, bytes.toByteArray()));
+
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        writeLock.lock();
+        try {
+            try (FileChannel channel = FileChannel.open(temporary,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                header.rewind();
+                while (header.hasRemaining() || ciphertext.hasRemaining()) {
+                    channel.write(new ByteBuffer[]{header, ciphertext});
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            writeLock.unlock();
+        }
+        return authenticated.size() + authorized.size();
+    }
+
+    /**
+     * Restores entries of the snapshot which are still fresh given their age
+     * @param authenticateCache authenticate cache
+     * @param authorizeCache authorize cache
+     * @return number of entries read, or 0 if there is no snapshot
+     * @throws IOException on failure to read or decrypt the file
+     */
+    int restore(ExpiringCache<CacheKey, AuthenticateResponse> authenticateCache,
+                ExpiringCache<CacheKey, Authorization> authorizeCache) throws IOException {
+        final ByteBuffer contents;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " has invalid size " + channel.size());
+            }
+            contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        final ByteBuffer header = contents.slice(0, HEADER_LENGTH);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Snapshot " + file + " has unknown format");
+        }
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        header.get(8, nonce);
+        final byte[] ciphertext = new byte[contents.capacity() - HEADER_LENGTH];
+        contents.get(HEADER_LENGTH, ciphertext);
+        final byte[] payload = crypt(Cipher.DECRYPT_MODE, nonce, header, ciphertext);
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            final long elapsedNanos = Math.max(0, System.currentTimeMillis() - in.readLong()) * 1_000_000;
+            int count = 0;
+            for (int i = in.readInt(); i > 0; i--, count++) {
+                final CacheKey key = CacheKey.readFrom(in);
+                final long age = in.readLong() + elapsedNanos;
+                authenticateCache.put(key, CacheCodec.readAuthenticateResponse(in), age);
+            }
+            for (int i = in.readInt(); i > 0; i--, count++) {
+                final CacheKey key = CacheKey.readFrom(in);
+                final long age = in.readLong() + elapsedNanos;
+                final Authorization authorization = CacheCodec.readAuthorization(in);
+                authorizeCache.put(key, authorization, age, authorization.getDirectives().getMaxAge());
+            }
+            return count;
+        }
+    }
+
+    private byte[] crypt(int mode, byte[] nonce, ByteBuffer header, byte[] input) throws IOException {
+        try {
+            final Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(mode, encryptionKey, new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+            // The header is authenticated too, so it cannot be altered either
+            cipher.updateAAD(header.duplicate().rewind());
+            return cipher.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt")
+                    + " snapshot " + file, e);
+        }
+    }
+}
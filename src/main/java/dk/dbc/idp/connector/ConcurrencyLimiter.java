@@ -0,0 +1,116 @@
+package dk.dbc.idp.connector;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit on the number of concurrent requests
+ * <p>
+ * Uses additive increase, multiplicative decrease: every successful request
+ * raises the limit by one over the current limit, so it grows by about one
+ * per round trip, while the limit is cut by {@link #BACKOFF} when the
+ * service is overloaded. The service is taken to be overloaded by every
+ * request failing for want of a response or with a server error, and while
+ * its latency is up: when a short term average of the latency of successful
+ * requests exceeds {@link #LATENCY_TOLERANCE} times the long term average,
+ * by at least {@link #MINIMUM_LATENCY_INCREASE}. Rising latency cuts the
+ * limit at most once per limit's worth of requests, so the limit is not
+ * cut again for requests already in flight when it was cut.
+ * </p>
+ * <p>
+ * When the service slows down or fails, callers are thus rejected at once
+ * instead of piling up waiting for the read timeout. The long term average
+ * follows lasting changes of latency, so a service that stays slower is
+ * eventually no longer held to be overloaded.
+ * </p>
+ */
+class ConcurrencyLimiter {
+    static final double BACKOFF = 0.7;
+    static final double LATENCY_TOLERANCE = 2;
+    static final long MINIMUM_LATENCY_INCREASE = Duration.ofMillis(5).toNanos();
+    // Weights of a new latency in the short and long term averages
+    private static final double SHORT_TERM_WEIGHT = 0.1;
+    private static final double LONG_TERM_WEIGHT = 0.002;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final int minimumLimit;
+    private final int maximumLimit;
+    private volatile double limit;
+    // Guarded by this
+    private double shortTermLatency;
+    private double longTermLatency;
+    private long releases;
+    private long nextLatencyBackoff;
+
+    /**
+     * @param initialLimit initial limit
+     * @param maximumLimit the limit never grows beyond this
+     */
+    ConcurrencyLimiter(int initialLimit, int maximumLimit) {
+        if (maximumLimit < 1 || initialLimit < 1 || initialLimit > maximumLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= initialLimit <= maximumLimit");
+        }
+        this.minimumLimit = 1;
+        this.maximumLimit = maximumLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * @return true if a request may be made, in which case
+     * {@link #release(long, boolean)} must be called when it completes
+     */
+    boolean tryAcquire() {
+        final int currentLimit = getLimit();
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= currentLimit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * @param latencyNanos time taken by the request
+     * @param failed true if the request failed in a way indicating
+     *               that the service is overloaded
+     */
+    void release(long latencyNanos, boolean failed) {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            releases++;
+            if (failed) {
+                limit = Math.max(minimumLimit, limit * BACKOFF);
+            } else if (isSlowingDown(latencyNanos)) {
+                if (releases - nextLatencyBackoff >= 0) {
+                    limit = Math.max(minimumLimit, limit * BACKOFF);
+                    nextLatencyBackoff = releases + (long) limit;
+                }
+            } else {
+                limit = Math.min(maximumLimit, limit + 1 / limit);
+            }
+        }
+    }
+
+    // Called holding the lock of this
+    private boolean isSlowingDown(long latencyNanos) {
+        if (longTermLatency == 0) {
+            shortTermLatency = latencyNanos;
+            longTermLatency = latencyNanos;
+            return false;
+        }
+        shortTermLatency += SHORT_TERM_WEIGHT * (latencyNanos - shortTermLatency);
+        longTermLatency += LONG_TERM_WEIGHT * (latencyNanos - longTermLatency);
+        return shortTermLatency > LATENCY_TOLERANCE * longTermLatency
+                && shortTermLatency - longTermLatency >= MINIMUM_LATENCY_INCREASE;
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,128 @@
+package dk.dbc.idp.connector;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Point in time by which a call must be answered, covering all its attempts
+ */
+final class Deadline {
+    /**
+     * No deadline, calls take as long as their attempts do
+     */
+    static final Deadline NONE = new Deadline(0, false);
+
+    private final long at;
+    private final boolean bounded;
+
+    private Deadline(long at, boolean bounded) {
+        this.at = at;
+        this.bounded = bounded;
+    }
+
+    /**
+     * @param timeout time from now, must be positive
+     * @return deadline the timeout from now
+     */
+    static Deadline after(Duration timeout) {
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        return new Deadline(System.nanoTime() + timeout.toNanos(), true);
+    }
+
+    boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * @return nanoseconds left, never negative, or Long.MAX_VALUE if there is no deadline
+     */
+    long remainingNanos() {
+        return bounded ? Math.max(0, at - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    boolean isExpired() {
+        return bounded && at - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Runs an attempt, abandoning it if not answered by the deadline
+     * <p>
+     * With a deadline the attempt runs on executor, and is interrupted when
+     * the deadline passes. Without one it runs on the calling thread.
+     * </p>
+     * @param executor executor running the attempt
+     * @param attempt attempt
+     * @param <T> type of answer
+     * @return the answer
+     * @throws IDPConnectorTimeoutException if the deadline passed first
+     * @throws IDPConnectorException if the attempt failed
+     */
+    <T> T run(ExecutorService executor, RequestHedger.Attempt<T> attempt) throws IDPConnectorException {
+        if (!bounded) {
+            return attempt.run(new AtomicBoolean());
+        }
+        if (isExpired()) {
+            throw new IDPConnectorTimeoutException("Deadline passed before calling the IDP");
+        }
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        final Future<T> future = executor.submit(() -> attempt.run(abandoned));
+        try {
+            return future.get(remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IDPConnectorTimeoutException("Deadline passed while waiting for the IDP");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IDPConnectorException("Interrupted while waiting for the IDP");
+        } finally {
+            abandoned.set(true);
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Waits for a pending call until the deadline, rethrowing its exception as is
+     * @param future pending result
+     * @param <T> result type
+     * @return result
+     * @throws IDPConnectorTimeoutException if the deadline passed first
+     * @throws IDPConnectorException if the call failed
+     */
+    <T> T await(CompletableFuture<T> future) throws IDPConnectorException {
+        if (!bounded) {
+            return SingleFlight.await(future);
+        }
+        try {
+            return future.get(remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IDPConnectorTimeoutException("Deadline passed while waiting for the IDP");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IDPConnectorException("Interrupted while waiting for the IDP");
+        }
+    }
+
+    private static IDPConnectorException rethrow(Throwable cause) {
+        if (cause instanceof IDPConnectorException) {
+            return (IDPConnectorException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+}
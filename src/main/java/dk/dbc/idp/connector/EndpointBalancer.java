@@ -0,0 +1,217 @@
+package dk.dbc.idp.connector;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Client side load balancing of requests across IDP endpoints
+ * <p>
+ * Each request goes to the better of two endpoints picked at random (power
+ * of two choices), where an endpoint is better when its expected latency,
+ * times its requests in flight plus one, is lower. Expected latency is a peak
+ * sensitive moving average: a response slower than the average replaces it
+ * at once, while faster responses lower it gradually. The average also decays
+ * while an endpoint gets no requests, so an endpoint once slow is tried again.
+ * </p>
+ * <p>
+ * An endpoint failing a number of requests in a row is ejected for a while,
+ * longer every time it is ejected again, but the last endpoint available is
+ * never ejected. An endpoint back from ejection starts slowly, its share of
+ * requests growing over the slow start window.
+ * </p>
+ */
+class EndpointBalancer {
+    // Time over which the latency average forgets past responses
+    private static final long DECAY_NANOS = Duration.ofSeconds(10).toNanos();
+    // Failures are taken to be at least this slow, also when failing fast
+    private static final long FAILURE_PENALTY_NANOS = Duration.ofSeconds(1).toNanos();
+    private static final int MAXIMUM_EJECTION_MULTIPLIER = 10;
+    private static final double MINIMUM_WEIGHT = 0.1;
+
+    private final List<Endpoint> endpoints;
+    private final int failureThreshold;
+    private final long ejectionNanos;
+    private final long slowStartNanos;
+    private final LongSupplier ticker;
+
+    /**
+     * @param baseUrls base URLs of the endpoints
+     * @param failureThreshold number of failures in a row ejecting an endpoint, 0 never ejects
+     * @param ejectionTime time an endpoint is ejected for the first time
+     * @param slowStartWindow time for an endpoint back from ejection to get its full share of requests
+     */
+    EndpointBalancer(List<String> baseUrls, int failureThreshold, Duration ejectionTime, Duration slowStartWindow) {
+        this(baseUrls, failureThreshold, ejectionTime, slowStartWindow, System::nanoTime);
+    }
+
+    EndpointBalancer(List<String> baseUrls, int failureThreshold, Duration ejectionTime, Duration slowStartWindow,
+                     LongSupplier ticker) {
+        if (baseUrls.isEmpty()) {
+            throw new IllegalArgumentException("baseUrls must not be empty");
+        }
+        final List<Endpoint> endpoints = new ArrayList<>(baseUrls.size());
+        for (String baseUrl : baseUrls) {
+            endpoints.add(new Endpoint(baseUrl, ticker.getAsLong()));
+        }
+        this.endpoints = List.copyOf(endpoints);
+        this.failureThreshold = failureThreshold;
+        this.ejectionNanos = ejectionTime.toNanos();
+        this.slowStartNanos = slowStartWindow.toNanos();
+        this.ticker = ticker;
+    }
+
+    List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Selects the endpoint for a request, which must be reported to
+     * {@link #release(Endpoint, long, boolean)} when done
+     * @return the endpoint
+     */
+    Endpoint acquire() {
+        final Endpoint endpoint = select(ticker.getAsLong());
+        endpoint.inFlight.incrementAndGet();
+        return endpoint;
+    }
+
+    /**
+     * @param endpoint endpoint the request went to
+     * @param elapsedNanos duration of the request
+     * @param failed true if the endpoint failed to answer
+     */
+    void release(Endpoint endpoint, long elapsedNanos, boolean failed) {
+        endpoint.inFlight.decrementAndGet();
+        record(endpoint, elapsedNanos, failed);
+    }
+
+    void record(Endpoint endpoint, long elapsedNanos, boolean failed) {
+        final long now = ticker.getAsLong();
+        synchronized (endpoint) {
+            endpoint.observe(failed ? Math.max(elapsedNanos, FAILURE_PENALTY_NANOS) : elapsedNanos, now);
+            if (!failed) {
+                endpoint.consecutiveFailures = 0;
+                if (endpoint.ejections > 0 && now - endpoint.availableFrom - slowStartNanos >= 0) {
+                    endpoint.ejections = 0;
+                }
+                return;
+            }
+            endpoint.consecutiveFailures++;
+            if (failureThreshold == 0 || endpoint.consecutiveFailures < failureThreshold
+                    || !endpoint.isAvailable(now) || !othersAvailable(endpoint, now)) {
+                return;
+            }
+            endpoint.ejections = Math.min(endpoint.ejections + 1, MAXIMUM_EJECTION_MULTIPLIER);
+            endpoint.availableFrom = now + ejectionNanos * endpoint.ejections;
+            endpoint.consecutiveFailures = 0;
+        }
+    }
+
+    private Endpoint select(long now) {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+        final List<Endpoint> available = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                available.add(endpoint);
+            }
+        }
+        if (available.isEmpty()) {
+            // Ejections raced, use the endpoint coming back first
+            Endpoint first = endpoints.get(0);
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.availableFrom - first.availableFrom < 0) {
+                    first = endpoint;
+                }
+            }
+            return first;
+        }
+        if (available.size() == 1) {
+            return available.get(0);
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int i = random.nextInt(available.size());
+        final int j = (i + 1 + random.nextInt(available.size() - 1)) % available.size();
+        final Endpoint a = available.get(i);
+        final Endpoint b = available.get(j);
+        return cost(a, now) <= cost(b, now) ? a : b;
+    }
+
+    private double cost(Endpoint endpoint, long now) {
+        final double latency = endpoint.latency(now);
+        return (latency + 1) * (endpoint.inFlight.get() + 1) / weight(endpoint, now);
+    }
+
+    private double weight(Endpoint endpoint, long now) {
+        final long sinceAvailable = now - endpoint.availableFrom;
+        if (endpoint.ejections == 0 || slowStartNanos <= 0 || sinceAvailable >= slowStartNanos) {
+            return 1;
+        }
+        return Math.max(MINIMUM_WEIGHT, (double) sinceAvailable / slowStartNanos);
+    }
+
+    private boolean othersAvailable(Endpoint ejecting, long now) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint != ejecting && endpoint.isAvailable(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static final class Endpoint {
+        private final String baseUrl;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double latencyNanos;
+        private volatile long observedAt;
+        private volatile long availableFrom;
+        private int consecutiveFailures;
+        private volatile int ejections;
+
+        private Endpoint(String baseUrl, long now) {
+            this.baseUrl = baseUrl;
+            this.observedAt = now;
+            this.availableFrom = now;
+        }
+
+        String getBaseUrl() {
+            return baseUrl;
+        }
+
+        boolean isAvailable(long now) {
+            return now - availableFrom >= 0;
+        }
+
+        /**
+         * @return expected latency in milliseconds
+         */
+        double getLatencyMillis() {
+            return latencyNanos / 1_000_000;
+        }
+
+        private double latency(long now) {
+            return latencyNanos * Math.exp(-(double) Math.max(0, now - observedAt) / DECAY_NANOS);
+        }
+
+        // Called holding the lock of the endpoint
+        private void observe(long elapsedNanos, long now) {
+            if (elapsedNanos > latencyNanos) {
+                latencyNanos = elapsedNanos;
+            } else {
+                final double weight = Math.exp(-(double) Math.max(0, now - observedAt) / DECAY_NANOS);
+                latencyNanos = latencyNanos * weight + elapsedNanos * (1 - weight);
+            }
+            observedAt = now;
+        }
+
+        @Override
+        public String toString() {
+            return baseUrl;
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package dk.dbc.idp.connector;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Thread-safe cache with expire-after-write semantics
+ * <p>
+ * Entries are kept in a {@link ConcurrentHashMap}, so lookups never lock and
+ * writes only lock the bin of the key being written. An expired entry is
+ * dropped by the lookup that finds it, and the remaining expired entries are
+ * removed by a sweep started at most once per sweep interval. The sweep is
+ * carried out by the writes, each looking at no more than
+ * {@link #SWEEP_BATCH_SIZE} entries, so no single write pays for a pass
+ * over the whole cache.
+ * </p>
+ * <p>
+ * A zero expire-after-write duration disables the cache, while a negative
+ * duration makes entries live until removed.
+ * </p>
+ * <p>
+ * Expired entries can be retained for a while as stale entries. They are
+ * not returned by {@link #get(Object)}, but can still be looked up through
+ * {@link #getEntry(Object)}, e.g. to serve when a fresh value cannot be had.
+ * </p>
+ * <p>
+ * When given a maximum size the cache tracks the access frequency of keys
+ * in a {@link FrequencySketch}. New keys are always admitted to a small
+ * window holding the most recently added keys, about one percent of the
+ * maximum size. A key leaving the full window is compared to the least
+ * frequently used of a few sampled entries of the rest of the cache, and
+ * the less frequently used of the two is evicted (W-TinyLFU). A new key is
+ * thus cached on its first miss and gets the time it spends in the window
+ * to prove itself, while floods of keys that are only ever seen once, like
+ * guessed passwords, are kept from pushing out the entries actually in use.
+ * </p>
+ * <p>
+ * New keys are queued for admission without locking. Whichever writer gets
+ * the eviction lock admits the queued keys of all writers, while the others
+ * go on without waiting, so the cache may briefly hold a few more entries
+ * than its maximum size while writes contend.
+ * </p>
+ * <p>
+ * Keys can be indexed by a property, e.g. the group of a cache key, so all
+ * entries with that property can be removed without scanning the cache.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+class ExpiringCache<K, V> {
+    enum RemovalCause {
+        /** Entry was no longer retained */
+        EXPIRED,
+        /** Entry was evicted to make room for another */
+        SIZE
+    }
+
+    @FunctionalInterface
+    interface RemovalListener<K, V> {
+        void onRemoval(K key, V value, RemovalCause cause);
+    }
+
+    private static final Duration MAX_SWEEP_INTERVAL = Duration.ofMinutes(1);
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+    private static final int WINDOW_PERCENTAGE = 1;
+    static final int SWEEP_BATCH_SIZE = 64;
+
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final long expireAfterWriteNanos;
+    private final long staleRetentionNanos;
+    private final long sweepIntervalNanos;
+    private final LongSupplier ticker;
+    private final AtomicLong nextSweep;
+    private final long maximumSize;
+    private final FrequencySketch sketch;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // Guarded by the eviction lock, may hold keys since removed
+    private final LinkedHashSet<K> window = new LinkedHashSet<>();
+    private final long windowMaximumSize;
+    private final ConcurrentLinkedQueue<K> admissions = new ConcurrentLinkedQueue<>();
+    private Iterator<Map.Entry<K, Entry<V>>> evictionCursor;
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    // Guarded by the sweep lock, null between sweeps
+    private volatile Iterator<Map.Entry<K, Entry<V>>> sweepCursor;
+    private volatile RemovalListener<K, V> removalListener = (key, value, cause) -> {};
+    private final ConcurrentHashMap<Object, Set<K>> index = new ConcurrentHashMap<>();
+    private volatile Function<K, ?> indexFunction;
+
+    ExpiringCache(Duration expireAfterWrite) {
+        this(expireAfterWrite, 0);
+    }
+
+    /**
+     * @param expireAfterWrite time to keep entries
+     * @param maximumSize maximum number of entries, 0 for no limit
+     */
+    ExpiringCache(Duration expireAfterWrite, long maximumSize) {
+        this(expireAfterWrite, Duration.ZERO, maximumSize);
+    }
+
+    /**
+     * @param expireAfterWrite time to keep entries fresh
+     * @param staleRetention time to retain entries as stale after they expire
+     * @param maximumSize maximum number of entries, 0 for no limit
+     */
+    ExpiringCache(Duration expireAfterWrite, Duration staleRetention, long maximumSize) {
+        this(expireAfterWrite, staleRetention, maximumSize, System::nanoTime);
+    }
+
+    ExpiringCache(Duration expireAfterWrite, Duration staleRetention, long maximumSize, LongSupplier ticker) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize must not be negative");
+        }
+        if (staleRetention.isNegative()) {
+            throw new IllegalArgumentException("staleRetention must not be negative");
+        }
+        this.staleRetentionNanos = staleRetention.toNanos();
+        this.maximumSize = maximumSize;
+        this.sketch = maximumSize > 0 ? new FrequencySketch(maximumSize) : null;
+        this.windowMaximumSize = Math.max(1, maximumSize * WINDOW_PERCENTAGE / 100);
+        this.expireAfterWriteNanos = expireAfterWrite.toNanos();
+        this.sweepIntervalNanos = expireAfterWriteNanos > 0
+                ? Math.min(expireAfterWriteNanos, MAX_SWEEP_INTERVAL.toNanos())
+                : MAX_SWEEP_INTERVAL.toNanos();
+        this.ticker = ticker;
+        this.nextSweep = new AtomicLong(ticker.getAsLong() + sweepIntervalNanos);
+    }
+
+    /**
+     * Sets listener notified when entries expire or are evicted, called on
+     * the thread causing the removal
+     * @param removalListener listener
+     */
+    void setRemovalListener(RemovalListener<K, V> removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * Indexes keys by a property, must be set before entries are written
+     * @param indexFunction function giving the property of a key
+     */
+    void setIndex(Function<K, ?> indexFunction) {
+        this.indexFunction = indexFunction;
+    }
+
+    /**
+     * @param key key to look up
+     * @return the value cached for the key or null if absent or expired
+     */
+    V get(K key) {
+        final Entry<V> entry = getEntry(key);
+        if (entry == null || !isFresh(entry)) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * @param key key to look up
+     * @return the entry cached for the key, which may be stale, or null if
+     * absent or no longer retained
+     */
+    Entry<V> getEntry(K key) {
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        final Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(ticker.getAsLong())) {
+            remove(key, entry, RemovalCause.EXPIRED);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param entry cached entry
+     * @return true if entry has not yet expired
+     */
+    boolean isFresh(Entry<V> entry) {
+        return entry.isFresh(ticker.getAsLong());
+    }
+
+    /**
+     * @param entry cached entry
+     * @return nanoseconds since entry was written
+     */
+    long ageOf(Entry<V> entry) {
+        return ticker.getAsLong() - entry.writtenAt;
+    }
+
+    /**
+     * @param entry cached entry
+     * @return nanoseconds entry is fresh for after it was written, or -1 if it never expires
+     */
+    long timeToLiveOf(Entry<V> entry) {
+        return entry.freshUntil == Entry.NEVER ? -1 : entry.freshUntil - entry.writtenAt;
+    }
+
+    /**
+     * Caches value for key, replacing any previous value
+     * <p>
+     * If the cache is full the value may later be evicted by the admission
+     * policy before it expires.
+     * </p>
+     * @param key key
+     * @param value value, must not be null
+     */
+    void put(K key, V value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * Caches value for key as if it had been written some time ago,
+     * unless that makes it expired already
+     * @param key key
+     * @param value value, must not be null
+     * @param ageNanos nanoseconds since the value was obtained
+     */
+    void put(K key, V value, long ageNanos) {
+        put(key, value, ageNanos, expireAfterWriteNanos);
+    }
+
+    /**
+     * Caches value for key with its own time to live instead of the
+     * expire-after-write duration of the cache, unless the cache is disabled
+     * <p>
+     * A zero time to live removes any entry cached for the key.
+     * </p>
+     * @param key key
+     * @param value value, must not be null
+     * @param ageNanos nanoseconds since the value was obtained
+     * @param timeToLive time the value is fresh for after it was obtained,
+     *                   or null for the expire-after-write duration
+     */
+    void put(K key, V value, long ageNanos, Duration timeToLive) {
+        if (expireAfterWriteNanos == 0) {
+            return;
+        }
+        if (timeToLive == null) {
+            put(key, value, ageNanos);
+            return;
+        }
+        if (timeToLive.isZero() || ageNanos >= timeToLive.toNanos()) {
+            remove(key);
+            return;
+        }
+        put(key, value, ageNanos, timeToLive.toNanos());
+    }
+
+    private void put(K key, V value, long ageNanos, long timeToLiveNanos) {
+        if (expireAfterWriteNanos == 0 || timeToLiveNanos > 0 && ageNanos >= timeToLiveNanos) {
+            return;
+        }
+        final long now = ticker.getAsLong();
+        final long writtenAt = now - ageNanos;
+        final Entry<V> entry = timeToLiveNanos > 0
+                ? new Entry<>(value, writtenAt, writtenAt + timeToLiveNanos,
+                        writtenAt + timeToLiveNanos + staleRetentionNanos)
+                : new Entry<>(value, writtenAt, Entry.NEVER, Entry.NEVER);
+        final boolean added = entries.put(key, entry) == null;
+        addToIndex(key);
+        if (added && sketch != null) {
+            admissions.add(key);
+            admit(now);
+        }
+        sweepIfDue(now);
+    }
+
+    /**
+     * @param key key
+     * @return true if an entry, fresh or not, was removed
+     */
+    boolean remove(K key) {
+        if (entries.remove(key) != null) {
+            removeFromIndex(key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes entries, fresh or not, by the indexed property of their keys
+     * @param indexValue property of the keys to remove, see {@link #setIndex(Function)}
+     * @param filter further condition on the keys to remove
+     * @return keys removed
+     */
+    List<K> removeIndexed(Object indexValue, Predicate<K> filter) {
+        final Set<K> keys = index.get(indexValue);
+        if (keys == null) {
+            return List.of();
+        }
+        final List<K> removed = new ArrayList<>();
+        for (K key : keys) {
+            if (filter.test(key) && remove(key)) {
+                removed.add(key);
+            }
+        }
+        return removed;
+    }
+
+    void clear() {
+        entries.clear();
+        index.clear();
+        if (sketch != null) {
+            evictionLock.lock();
+            try {
+                admissions.clear();
+                window.clear();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Calls action for every fresh entry, entries written or removed
+     * concurrently may or may not be seen
+     * @param action action taking key and entry
+     */
+    void forEachFresh(BiConsumer<K, Entry<V>> action) {
+        final long now = ticker.getAsLong();
+        entries.forEach((key, entry) -> {
+            if (entry.isFresh(now)) {
+                action.accept(key, entry);
+            }
+        });
+    }
+
+    /**
+     * @return number of entries currently held, including expired
+     * entries not yet swept
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all expired entries now
+     */
+    void cleanUp() {
+        final long now = ticker.getAsLong();
+        for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+            if (entry.getValue().isExpired(now)) {
+                remove(entry.getKey(), entry.getValue(), RemovalCause.EXPIRED);
+            }
+        }
+    }
+
+    /* A writer failing to get the eviction lock leaves its key queued for
+     * the holder, which checks the queue again after letting go of the lock,
+     * so no key is left waiting once all writers have returned.
+     */
+    private void admit(long now) {
+        while (!admissions.isEmpty() && evictionLock.tryLock()) {
+            try {
+                K key;
+                while ((key = admissions.poll()) != null) {
+                    if (entries.containsKey(key)) {
+                        window.remove(key);
+                        window.add(key);
+                    }
+                }
+                evict(now);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /* Must be called holding the eviction lock. Keys overflowing the window
+     * move on to the rest of the cache, if the cache is full only when used
+     * more frequently than the victim sampled there.
+     */
+    private void evict(long now) {
+        while (window.size() > windowMaximumSize) {
+            final K candidate = window.iterator().next();
+            window.remove(candidate);
+            final Entry<V> entry = entries.get(candidate);
+            if (entry == null || entries.size() <= maximumSize) {
+                continue;
+            }
+            final Map.Entry<K, Entry<V>> victim = sampleVictim(candidate, now);
+            if (victim != null && (!victim.getValue().isFresh(now)
+                    || sketch.frequency(candidate) > sketch.frequency(victim.getKey()))) {
+                remove(victim.getKey(), victim.getValue(),
+                        victim.getValue().isExpired(now) ? RemovalCause.EXPIRED : RemovalCause.SIZE);
+            } else {
+                remove(candidate, entry, entry.isExpired(now) ? RemovalCause.EXPIRED : RemovalCause.SIZE);
+            }
+        }
+        while (entries.size() > maximumSize) {
+            final Map.Entry<K, Entry<V>> victim = sampleVictim(null, now);
+            if (victim != null) {
+                remove(victim.getKey(), victim.getValue(),
+                        victim.getValue().isExpired(now) ? RemovalCause.EXPIRED : RemovalCause.SIZE);
+            } else if (!window.isEmpty()) {
+                final K oldest = window.iterator().next();
+                window.remove(oldest);
+                final Entry<V> entry = entries.get(oldest);
+                if (entry != null) {
+                    remove(oldest, entry, RemovalCause.SIZE);
+                }
+            } else {
+                break;
+            }
+        }
+    }
+
+    /* Must be called holding the eviction lock. The cursor resumes where
+     * the previous sample ended, so consecutive evictions look at different
+     * entries. Keys in the window are passed over, and expired and stale
+     * entries are returned as soon as they are seen.
+     */
+    private Map.Entry<K, Entry<V>> sampleVictim(K candidate, long now) {
+        Map.Entry<K, Entry<V>> victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+            if (evictionCursor == null || !evictionCursor.hasNext()) {
+                evictionCursor = entries.entrySet().iterator();
+                if (!evictionCursor.hasNext()) {
+                    break;
+                }
+            }
+            final Map.Entry<K, Entry<V>> sample = evictionCursor.next();
+            if (sample.getKey().equals(candidate) || window.contains(sample.getKey())) {
+                continue;
+            }
+            if (!sample.getValue().isFresh(now)) {
+                return sample;
+            }
+            final int frequency = sketch.frequency(sample.getKey());
+            if (frequency < victimFrequency) {
+                victim = sample;
+                victimFrequency = frequency;
+            }
+        }
+        return victim;
+    }
+
+    /* Starts a sweep when due and carries on with the next batch of an
+     * ongoing one. Writers finding another writer sweeping go on without it.
+     */
+    private void sweepIfDue(long now) {
+        if ((sweepCursor == null && now - nextSweep.get() < 0) || !sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            Iterator<Map.Entry<K, Entry<V>>> cursor = sweepCursor;
+            if (cursor == null) {
+                if (now - nextSweep.get() < 0) {
+                    return;
+                }
+                nextSweep.set(now + sweepIntervalNanos);
+                cursor = entries.entrySet().iterator();
+            }
+            for (int i = 0; i < SWEEP_BATCH_SIZE && cursor.hasNext(); i++) {
+                final Map.Entry<K, Entry<V>> entry = cursor.next();
+                if (entry.getValue().isExpired(now)) {
+                    remove(entry.getKey(), entry.getValue(), RemovalCause.EXPIRED);
+                }
+            }
+            sweepCursor = cursor.hasNext() ? cursor : null;
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    /* Removal is conditional on the entry still being mapped,
+     * so concurrent replacements are never lost
+     */
+    private void remove(K key, Entry<V> entry, RemovalCause cause) {
+        if (entries.remove(key, entry)) {
+            removeFromIndex(key);
+            removalListener.onRemoval(key, entry.value, cause);
+        }
+    }
+
+    /* Index updates of a property are serialized by compute, and a key is
+     * only dropped from the index while it is not mapped, so a key written
+     * concurrently with its removal is never left out of the index.
+     */
+    private void addToIndex(K key) {
+        final Function<K, ?> indexFunction = this.indexFunction;
+        if (indexFunction != null) {
+            index.compute(indexFunction.apply(key), (value, keys) -> {
+                final Set<K> indexed = keys != null ? keys : ConcurrentHashMap.newKeySet();
+                indexed.add(key);
+                return indexed;
+            });
+        }
+    }
+
+    private void removeFromIndex(K key) {
+        final Function<K, ?> indexFunction = this.indexFunction;
+        if (indexFunction != null) {
+            index.computeIfPresent(indexFunction.apply(key), (value, keys) -> {
+                if (!entries.containsKey(key)) {
+                    keys.remove(key);
+                }
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    static final class Entry<V> {
+        static final long NEVER = Long.MIN_VALUE;
+
+        final V value;
+        final long writtenAt;
+        final long freshUntil;
+        final long expiresAt;
+
+        Entry(V value, long writtenAt, long freshUntil, long expiresAt) {
+            this.value = value;
+            this.writtenAt = writtenAt;
+            this.freshUntil = freshUntil;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh(long now) {
+            return freshUntil == NEVER || now - freshUntil < 0;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != NEVER && now - expiresAt >= 0;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package dk.dbc.idp.connector;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts rejected authentication attempts per user and group
+ * <p>
+ * Once a user in a group has been rejected the maximum number of times within
+ * a window, starting at the first rejection, the user is throttled until the
+ * window ends, and further attempts with unknown passwords can be answered
+ * without asking the IDP. A successful authentication resets the count.
+ * Counts are kept in a bounded cache, so a flood of distinct users cannot
+ * exhaust memory.
+ * </p>
+ */
+class FailedAttemptLimiter {
+    private final ExpiringCache<Map.Entry<String, String>, AtomicInteger> failures;
+    private final int maxFailedAttempts;
+
+    /**
+     * @param maxFailedAttempts number of rejections before throttling, 0 disables throttling
+     * @param window time from the first rejection until the count is reset
+     * @param maximumSize maximum number of users to keep counts for
+     */
+    FailedAttemptLimiter(int maxFailedAttempts, Duration window, long maximumSize) {
+        this(maxFailedAttempts, window, maximumSize, System::nanoTime);
+    }
+
+    FailedAttemptLimiter(int maxFailedAttempts, Duration window, long maximumSize, LongSupplier ticker) {
+        this.maxFailedAttempts = maxFailedAttempts;
+        this.failures = new ExpiringCache<>(maxFailedAttempts > 0 ? window : Duration.ZERO,
+                Duration.ZERO, maximumSize, ticker);
+    }
+
+    boolean isThrottled(String user, String group) {
+        if (maxFailedAttempts == 0) {
+            return false;
+        }
+        final AtomicInteger count = failures.get(Map.entry(user, group));
+        return count != null && count.get() >= maxFailedAttempts;
+    }
+
+    void recordFailure(String user, String group) {
+        if (maxFailedAttempts == 0) {
+            return;
+        }
+        final Map.Entry<String, String> key = Map.entry(user, group);
+        AtomicInteger count = failures.get(key);
+        if (count == null) {
+            // Racing first failures may each start a count, losing a few
+            // failures is fine for throttling
+            count = new AtomicInteger();
+            failures.put(key, count);
+        }
+        count.incrementAndGet();
+    }
+
+    void recordSuccess(String user, String group) {
+        if (maxFailedAttempts == 0) {
+            return;
+        }
+        failures.remove(Map.entry(user, group));
+    }
+}
@@ -0,0 +1,107 @@
+package dk.dbc.idp.connector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate, aging access frequency of keys (TinyLFU)
+ * <p>
+ * A count-min sketch of depth four with 4-bit counters packed sixteen to a
+ * long. Once the number of increments reaches ten times the capacity all
+ * counters are halved, so the popularity of keys decays over time.
+ * Counters are updated with CAS, and saturated counters are not written at
+ * all, so frequently read keys do not cause contention.
+ * </p>
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_TABLE_SIZE = 1 << 22;
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * @param capacity expected maximum number of keys tracked
+     */
+    FrequencySketch(long capacity) {
+        final int tableSize = ceilingPowerOfTwo((int) Math.max(8, Math.min(capacity, MAX_TABLE_SIZE)));
+        this.table = new AtomicLongArray(tableSize);
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * tableSize;
+    }
+
+    /**
+     * @param key key
+     * @return estimated number of recent occurrences of the key, at most 15
+     */
+    int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            final int offset = (start + i) << 2;
+            final long count = (table.get(indexOf(hash, i)) >>> offset) & 0xfL;
+            frequency = Math.min(frequency, (int) count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of key
+     * @param key key
+     */
+    void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), (start + i) << 2);
+        }
+        if (added && additions.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int offset) {
+        final long mask = 0xfL << offset;
+        long value;
+        do {
+            value = table.get(index);
+            if ((value & mask) == mask) {
+                return false;
+            }
+        } while (!table.compareAndSet(index, value, value + (1L << offset)));
+        return true;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            long value;
+            do {
+                value = table.get(i);
+            } while (!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+        }
+        additions.addAndGet(-sampleSize / 2);
+    }
+
+    private int indexOf(int hash, int depth) {
+        long h = (hash + SEEDS[depth]) * SEEDS[depth];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << -Integer.numberOfLeadingZeros(x - 1);
+    }
+}
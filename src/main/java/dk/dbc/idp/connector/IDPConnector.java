@@ -6,19 +6,40 @@ import dk.dbc.httpclient.HttpPost;
 import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.core.Response;
+import net.jodah.failsafe.CircuitBreaker;
 import net.jodah.failsafe.RetryPolicy;
-import org.apache.commons.collections4.map.PassiveExpiringMap;
 import org.perf4j.StopWatch;
 import org.perf4j.log4j.Log4JStopWatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 
 public class IDPConnector {
     public enum TimingLogLevel {
@@ -27,23 +48,45 @@ public class IDPConnector {
     private static final Logger LOGGER = LoggerFactory.getLogger(IDPConnector.class);
     private static final String PATH_AUTHENTICATE = "/api/v1/authenticate/";
     private static final String PATH_AUTHORIZE = "/api/v1/authorize/";
-    private static final int MAX_CACHE_AGE = 8;
+    private static final String PROBE_USER = "idp-connector-health-probe";
+    private static final String PROBE_GROUP = "000000";
+    private static final Duration SNAPSHOT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
 
-    private final PassiveExpiringMap<String, AuthenticateResponse> authenticateCache;
-    private final PassiveExpiringMap<String, AuthorizeResponse> authorizeCache;
+    private final ExpiringCache<CacheKey, AuthenticateResponse> authenticateCache;
+    private final ExpiringCache<CacheKey, Authorization> authorizeCache;
+    private final ExpiringCache<CacheKey, Boolean> rejectedCache;
+    private final FailedAttemptLimiter failedAttempts;
+    private final SingleFlight<CacheKey, AuthenticateResponse> authenticateCalls = new SingleFlight<>();
+    private final SingleFlight<CacheKey, Authorization> authorizeCalls = new SingleFlight<>();
+    private final CacheKey.Factory cacheKeyFactory;
 
-    /* Currently, retry handling is disabled to retain backwards compatibility
-     * with older versions of the FailSafeHttpClient in use in systems using
-     * this connector.
+    /* Requests are retried by the connector itself, within the deadline of
+     * the call and the retry budget, see RequestRetrier. Retrying in the
+     * FailSafeHttpClient as well would multiply the attempts.
      */
     private static final RetryPolicy<Response> RETRY_POLICY = new RetryPolicy<Response>()
-            .handle(ProcessingException.class)
-            .handleResultIf(response -> response.getStatus() == 500)
-            .withDelay(Duration.ofSeconds(1))
-            .withMaxRetries(3);
+            .withMaxRetries(0);
 
     private final FailSafeHttpClient failSafeHttpClient;
-    private final String baseUrl;
+    private final EndpointBalancer endpoints;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final long refreshAheadNanos;
+    private final double refreshAheadFactor;
+    private final boolean unifiedCache;
+    private final IDPConnectorMetrics metrics;
+    private final IDPConnectorMetrics.CacheMetrics authenticateCacheMetrics;
+    private final IDPConnectorMetrics.CacheMetrics authorizeCacheMetrics;
+    private final IDPHealthMonitor healthMonitor;
+    private final CircuitBreaker<Response> circuitBreaker;
+    private final ConcurrencyLimiter concurrencyLimiter;
+    private final RequestHedger requestHedger;
+    private final RequestRetrier requestRetrier;
+    private final Duration requestDeadline;
+    private final CacheSnapshot cacheSnapshot;
+    private final SecondLevelCache secondLevelCache;
+    private final IDPConnectorMetrics.CacheMetrics remoteCacheMetrics;
+    private final Semaphore batchPermits;
+    private final ScheduledExecutorService snapshotScheduler;
 
     public IDPConnector(Client client, UserAgent userAgent, String baseUrl) {
         this(FailSafeHttpClient.create(client, userAgent, RETRY_POLICY), baseUrl);
@@ -53,99 +96,874 @@ public class IDPConnector {
         this(FailSafeHttpClient.create(client, userAgent, RETRY_POLICY), baseUrl, cacheAge);
     }
 
+    public IDPConnector(Client client, UserAgent userAgent, String baseUrl, IDPConnectorSettings settings) {
+        this(FailSafeHttpClient.create(client, userAgent, RETRY_POLICY), baseUrl, settings);
+    }
+
     public IDPConnector(FailSafeHttpClient failSafeHttpClient, String baseUrl) {
-        Objects.requireNonNull(failSafeHttpClient, "failSafeHttpClient");
-        Objects.requireNonNull(baseUrl, "baseUrl");
-        this.failSafeHttpClient = failSafeHttpClient;
-        this.baseUrl = baseUrl;
-        this.authenticateCache = new PassiveExpiringMap<>(MAX_CACHE_AGE, TimeUnit.HOURS);
-        this.authorizeCache = new PassiveExpiringMap<>(MAX_CACHE_AGE, TimeUnit.HOURS);
+        this(failSafeHttpClient, baseUrl, new IDPConnectorSettings());
     }
 
     public IDPConnector(FailSafeHttpClient failSafeHttpClient, String baseUrl, int cacheAge) {
+        this(failSafeHttpClient, baseUrl, new IDPConnectorSettings().withCacheAge(Duration.ofHours(cacheAge)));
+    }
+
+    public IDPConnector(FailSafeHttpClient failSafeHttpClient, String baseUrl, IDPConnectorSettings settings) {
+        this(failSafeHttpClient, List.of(Objects.requireNonNull(baseUrl, "baseUrl")), settings);
+    }
+
+    /**
+     * Creates a connector balancing requests across IDP replicas
+     * @param client web resources client
+     * @param userAgent user agent of requests
+     * @param baseUrls base URLs of the IDP replicas
+     * @param settings connector settings
+     * @see EndpointBalancer
+     */
+    public IDPConnector(Client client, UserAgent userAgent, List<String> baseUrls, IDPConnectorSettings settings) {
+        this(FailSafeHttpClient.create(client, userAgent, RETRY_POLICY), baseUrls, settings);
+    }
+
+    public IDPConnector(FailSafeHttpClient failSafeHttpClient, List<String> baseUrls, IDPConnectorSettings settings) {
         Objects.requireNonNull(failSafeHttpClient, "failSafeHttpClient");
-        Objects.requireNonNull(baseUrl, "baseUrl");
+        Objects.requireNonNull(baseUrls, "baseUrls");
+        Objects.requireNonNull(settings, "settings");
         this.failSafeHttpClient = failSafeHttpClient;
-        this.baseUrl = baseUrl;
-        this.authenticateCache = new PassiveExpiringMap<>(cacheAge, TimeUnit.HOURS);
-        this.authorizeCache = new PassiveExpiringMap<>(cacheAge, TimeUnit.HOURS);
+        this.endpoints = new EndpointBalancer(baseUrls, settings.getOutlierFailureThreshold(),
+                settings.getOutlierEjectionTime(), settings.getSlowStartWindow());
+        // Entries shared through snapshots or a remote cache must have keys
+        // digested the same way by every connector, hence the configured secret
+        final byte[] cacheSecret = settings.getCacheSecret();
+        if ((settings.getCacheSnapshotFile() != null || settings.getRemoteCache() != null) && cacheSecret == null) {
+            throw new IllegalArgumentException("Cache snapshots and remote caches require a cache secret");
+        }
+        this.cacheKeyFactory = cacheSecret != null ? CacheKey.Factory.fromCacheSecret(cacheSecret) : new CacheKey.Factory();
+        this.cacheSnapshot = settings.getCacheSnapshotFile() != null
+                ? new CacheSnapshot(settings.getCacheSnapshotFile(), cacheSecret)
+                : null;
+        // The off-heap store is a second level of its own, in front of any remote cache
+        final OffHeapCache offHeapCache = settings.getOffHeapCacheSize() > 0
+                ? new OffHeapCache(settings.getOffHeapCacheSize(), settings.getRemoteCache())
+                : null;
+        this.secondLevelCache = new SecondLevelCache(
+                offHeapCache != null ? offHeapCache : settings.getRemoteCache(), settings.getCacheAge());
+        this.batchPermits = new Semaphore(settings.getBatchConcurrency());
+        this.unifiedCache = settings.isUnifiedCache();
+        // In unified mode authenticate is answered by the authorize cache alone
+        this.authenticateCache = new ExpiringCache<>(unifiedCache ? Duration.ZERO : settings.getCacheAge(),
+                Duration.ZERO, settings.getCacheMaximumSize(), settings.getTicker());
+        this.authorizeCache = new ExpiringCache<>(settings.getCacheAge(), settings.getStaleIfErrorWindow(),
+                settings.getCacheMaximumSize(), settings.getTicker());
+        this.rejectedCache = new ExpiringCache<>(
+                settings.getCacheAge().isZero() ? Duration.ZERO : settings.getNegativeCacheAge(),
+                Duration.ZERO, settings.getNegativeCacheMaximumSize(), settings.getTicker());
+        this.failedAttempts = new FailedAttemptLimiter(settings.getMaxFailedAttempts(),
+                settings.getFailedAttemptsWindow(), settings.getNegativeCacheMaximumSize());
+        this.refreshAheadNanos = (long) (settings.getCacheAge().toNanos() * settings.getRefreshAheadFactor());
+        this.refreshAheadFactor = settings.getRefreshAheadFactor();
+        this.metrics = new IDPConnectorMetrics(settings.getMetricRegistry());
+        metrics.endpoints(endpoints);
+        this.authenticateCacheMetrics = metrics.cache(IDPConnectorMetrics.AUTHENTICATE_CACHE, authenticateCache);
+        this.authorizeCacheMetrics = metrics.cache(IDPConnectorMetrics.AUTHORIZE_CACHE, authorizeCache);
+        final IDPConnectorMetrics.CacheMetrics rejectedCacheMetrics =
+                metrics.cache(IDPConnectorMetrics.REJECTED_CACHE, rejectedCache);
+        rejectedCache.setRemovalListener((key, value, cause) -> rejectedCacheMetrics.eviction(cause));
+        authenticateCache.setIndex(CacheKey::getGroup);
+        authorizeCache.setIndex(CacheKey::getGroup);
+        rejectedCache.setIndex(CacheKey::getGroup);
+        authenticateCache.setRemovalListener((key, value, cause) -> authenticateCacheMetrics.eviction(cause));
+        authorizeCache.setRemovalListener((key, value, cause) -> authorizeCacheMetrics.eviction(cause));
+        this.remoteCacheMetrics = offHeapCache != null
+                ? metrics.offHeapCache(offHeapCache)
+                : metrics.cache(IDPConnectorMetrics.REMOTE_CACHE);
+        secondLevelCache.subscribe(key -> {
+            authenticateCache.remove(key);
+            authorizeCache.remove(key);
+        });
+        this.healthMonitor = new IDPHealthMonitor(settings.getHealthProbeInterval(), this::probe);
+        this.circuitBreaker = createCircuitBreaker(settings);
+        this.concurrencyLimiter = createConcurrencyLimiter(settings);
+        this.requestHedger = settings.getHedgePercentile() > 0
+                ? new RequestHedger(executor, healthMonitor, settings.getHedgePercentile(),
+                        settings.getHedgeMinimumDelay(), settings.getHedgeBudget())
+                : null;
+        this.requestRetrier = new RequestRetrier(settings.getMaxRetries(), settings.getRetryBackoff(),
+                settings.getRetryBudget());
+        this.requestDeadline = settings.getRequestDeadline();
+        this.snapshotScheduler = cacheSnapshot != null ? startSnapshots(settings.getCacheSnapshotInterval()) : null;
+    }
+
+    private ScheduledExecutorService startSnapshots(Duration interval) {
+        try {
+            final int restored = cacheSnapshot.restore(authenticateCache, authorizeCache);
+            LOGGER.info("Restored {} cache entries from snapshot", restored);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to restore cache snapshot, starting with empty caches: {}", e.getMessage());
+        }
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofVirtual().name("idp-cache-snapshot").factory());
+        scheduler.scheduleWithFixedDelay(this::writeSnapshot,
+                interval.toNanos(), interval.toNanos(), TimeUnit.NANOSECONDS);
+        return scheduler;
+    }
+
+    private void writeSnapshot() {
+        try {
+            final int written = cacheSnapshot.write(authenticateCache, authorizeCache);
+            LOGGER.debug("Wrote {} cache entries to snapshot", written);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to write cache snapshot: {}", e.getMessage());
+        }
+    }
+
+    private CircuitBreaker<Response> createCircuitBreaker(IDPConnectorSettings settings) {
+        if (settings.getCircuitBreakerFailureThreshold() == 0) {
+            return null;
+        }
+        final CircuitBreaker<Response> breaker = new CircuitBreaker<Response>()
+                .withFailureThreshold(settings.getCircuitBreakerFailureThreshold())
+                .withDelay(settings.getCircuitBreakerDelay())
+                .onOpen(() -> LOGGER.warn("IDP circuit breaker opened, failing fast for {}",
+                        settings.getCircuitBreakerDelay()))
+                .onHalfOpen(() -> LOGGER.info("IDP circuit breaker half-open, trying requests"))
+                .onClose(() -> LOGGER.info("IDP circuit breaker closed"));
+        metrics.circuitBreaker(breaker);
+        return breaker;
+    }
+
+    private ConcurrencyLimiter createConcurrencyLimiter(IDPConnectorSettings settings) {
+        if (settings.getMaxConcurrentRequests() == 0) {
+            return null;
+        }
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(
+                settings.getMaxConcurrentRequests(), settings.getMaxConcurrentRequests());
+        metrics.concurrencyLimiter(limiter);
+        return limiter;
     }
 
     public void close() {
+        if (snapshotScheduler != null) {
+            // Let a snapshot being written finish before writing the last one
+            snapshotScheduler.shutdown();
+            try {
+                if (!snapshotScheduler.awaitTermination(SNAPSHOT_SHUTDOWN_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS)) {
+                    LOGGER.warn("Cache snapshot still being written after {}", SNAPSHOT_SHUTDOWN_TIMEOUT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writeSnapshot();
+        }
+        executor.shutdown();
         failSafeHttpClient.getClient().close();
     }
 
-    private String createNetpunktCacheKey(String user, String group, String password) {
-        return String.format("%s_%s_%s", user, group, password);
+    IDPHealthMonitor getHealthMonitor() {
+        return healthMonitor;
+    }
+
+    /* Asks the IDP to authenticate a non-existing user in the background,
+     * any well-formed answer shows that the IDP is reachable. The outcome
+     * is recorded by attemptRequest like any other request.
+     */
+    private void probe() {
+        try {
+            executor.execute(() -> {
+                try {
+                    probeRequest();
+                } catch (IDPConnectorException | RuntimeException e) {
+                    LOGGER.warn("IDP health probe failed: {}", e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("IDP health probe skipped, connector is closed");
+        }
+    }
+
+    // Probes are never retried, their outcome is what the health monitor needs.
+    // They bypass the circuit breaker, so while it is open and no other requests
+    // are made, they still tell the health monitor whether the IDP answers.
+    private void probeRequest() throws IDPConnectorException {
+        sendRequest(PATH_AUTHENTICATE,
+                createNetpunktTriple(PROBE_USER, PROBE_GROUP, PROBE_USER), Map.of(),
+                response -> readResponseEntity(response, AuthenticateResponse.class),
+                Deadline.NONE, metrics.request(PATH_AUTHENTICATE));
+    }
+
+    /**
+     * Opens connections to the IDP before they are needed
+     * <p>
+     * Makes a number of concurrent probe requests, leaving as many open
+     * connections in the pool of a client that keeps connections alive, so
+     * the first requests of real users do not pay for the handshakes.
+     * </p>
+     * @param connections number of connections to open
+     * @param timeout maximum time to wait for the probe requests
+     * @return number of probe requests answered by the IDP within the timeout
+     */
+    public int prewarm(int connections, Duration timeout) {
+        final List<Future<?>> probes = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            probes.add(executor.submit(() -> {
+                probeRequest();
+                return null;
+            }));
+        }
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        int answered = 0;
+        for (Future<?> probe : probes) {
+            try {
+                probe.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                answered++;
+            } catch (ExecutionException e) {
+                LOGGER.debug("IDP prewarm request failed: {}", e.getCause().getMessage());
+            } catch (TimeoutException e) {
+                probe.cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                probes.forEach(future -> future.cancel(true));
+                break;
+            }
+        }
+        return answered;
+    }
+
+    private CacheKey createNetpunktCacheKey(String user, String group, String password) {
+        return cacheKeyFactory.create(user, group, password);
+    }
+
+    private NetpunktTripleDTO createNetpunktTriple(String user, String group, String password) {
+        final NetpunktTripleDTO netpunktTripleDTO = new NetpunktTripleDTO();
+        netpunktTripleDTO.setAgencyId(group);
+        netpunktTripleDTO.setUserIdAut(user);
+        netpunktTripleDTO.setPasswordAut(password);
+        return netpunktTripleDTO;
+    }
+
+    /**
+     * Drops everything cached about a user, whatever the password
+     * <p>
+     * Entries of the remote cache are invalidated whichever replica wrote
+     * them, by a single marker rather than a delete per entry. The local
+     * caches of other replicas are not touched, so every replica should be
+     * told about changes, e.g. through {@link IDPRightsChangedEvent}.
+     * </p>
+     * @param user user whose rights or password changed
+     * @param group agency of the user
+     * @return number of credentials dropped from the local caches of this connector
+     */
+    public int invalidate(String user, String group) {
+        checkNotNullOrEmpty(user, "user");
+        checkNotNullOrEmpty(group, "group");
+        secondLevelCache.invalidateUser(user, group);
+        return invalidate(group, key -> key.getUser().equals(user));
+    }
+
+    /**
+     * Drops everything cached about the users of an agency, see {@link #invalidate(String, String)}
+     * @param group agency whose rights changed
+     * @return number of credentials dropped from the local caches of this connector
+     */
+    public int invalidateAgency(String group) {
+        checkNotNullOrEmpty(group, "group");
+        secondLevelCache.invalidateGroup(group);
+        return invalidate(group, key -> true);
+    }
+
+    /**
+     * Drops everything cached, see {@link #invalidate(String, String)}
+     */
+    public void invalidateAll() {
+        secondLevelCache.invalidateAll();
+        authenticateCache.clear();
+        authorizeCache.clear();
+        rejectedCache.clear();
+        LOGGER.info("Invalidated all cached rights");
+    }
+
+    /**
+     * @param event change of rights to drop cached entries for
+     */
+    public void invalidate(IDPRightsChangedEvent event) {
+        if (event.getGroup() == null) {
+            invalidateAll();
+        } else if (event.getUser() == null) {
+            invalidateAgency(event.getGroup());
+        } else {
+            invalidate(event.getUser(), event.getGroup());
+        }
+    }
+
+    private int invalidate(String group, Predicate<CacheKey> filter) {
+        final Set<CacheKey> invalidated = new HashSet<>(authenticateCache.removeIndexed(group, filter));
+        invalidated.addAll(authorizeCache.removeIndexed(group, filter));
+        // Rejected credentials may have become valid
+        final int rejected = rejectedCache.removeIndexed(group, filter).size();
+        LOGGER.info("Invalidated {} locally cached entries for {}", invalidated.size() + rejected, group);
+        return invalidated.size() + rejected;
     }
 
     public boolean authenticate(final String user, final String group, final String password) throws IDPConnectorException {
+        return authenticate(user, group, password, newDeadline());
+    }
+
+    /**
+     * Authenticates within a deadline
+     * <p>
+     * The timeout covers all attempts to ask the IDP, including retries and
+     * the waits between them, and waiting for a call already in flight for
+     * the same credentials.
+     * </p>
+     * @param user user id
+     * @param group agency id
+     * @param password password
+     * @param timeout maximum time to wait for the IDP, must be positive
+     * @return true if the user is authenticated
+     * @throws IDPConnectorTimeoutException if the IDP did not answer in time
+     * @throws IDPConnectorThrottledException if the user has failed to authenticate too many times lately
+     * @throws IDPConnectorException on failure to ask the IDP
+     */
+    public boolean authenticate(final String user, final String group, final String password, Duration timeout)
+            throws IDPConnectorException {
+        return authenticate(user, group, password, Deadline.after(timeout));
+    }
+
+    private boolean authenticate(final String user, final String group, final String password, Deadline deadline)
+            throws IDPConnectorException {
         checkNotNullOrEmpty(user, "user");
         checkNotNullOrEmpty(group, "group");
         checkNotNullOrEmpty(password, "password");
 
-        final String cacheKey = createNetpunktCacheKey(user, group, password);
-        AuthenticateResponse authenticateResponse = authenticateCache.get(cacheKey);
+        final CacheKey cacheKey = createNetpunktCacheKey(user, group, password);
+        if (unifiedCache) {
+            return lookupAuthorization(cacheKey, user, group, password, authenticateCacheMetrics, deadline)
+                    .isAuthenticated();
+        }
+        final AuthenticateResponse authenticateResponse = authenticateCache.get(cacheKey);
+        if (authenticateResponse != null) {
+            authenticateCacheMetrics.hit();
+            return authenticateResponse.isAuthenticated();
+        }
+
+        // An authorize response holds everything an authenticate response does,
+        // so a cached or pending authorize call for the same triple is used as well
+        final Authorization authorization = authorizeCache.get(cacheKey);
+        if (authorization != null) {
+            authenticateCacheMetrics.hit();
+            return authorization.isAuthenticated();
+        }
+        if (isRejectedLocally(cacheKey)) {
+            authenticateCacheMetrics.hit();
+            return false;
+        }
+        checkNotThrottled(cacheKey);
+        authenticateCacheMetrics.miss();
+        final CompletableFuture<Authorization> pendingAuthorize = authorizeCalls.inFlight(cacheKey);
+        if (pendingAuthorize != null) {
+            return deadline.await(pendingAuthorize).isAuthenticated();
+        }
 
-        if (authenticateResponse == null) {
-            final NetpunktTripleDTO netpunktTripleDTO = new NetpunktTripleDTO();
-            netpunktTripleDTO.setAgencyId(group);
-            netpunktTripleDTO.setUserIdAut(user);
-            netpunktTripleDTO.setPasswordAut(password);
+        return authenticateCalls.execute(cacheKey,
+                () -> fetchAuthenticateResponse(cacheKey, user, group, password, deadline), deadline)
+                .isAuthenticated();
+    }
 
-            LOGGER.info("Authenticating {}/{}", group, user);
-            authenticateResponse = postRequest(PATH_AUTHENTICATE, netpunktTripleDTO, AuthenticateResponse.class);
+    /**
+     * Asynchronous version of {@link #authenticate(String, String, String)}
+     * <p>
+     * Cache hits are returned as already completed stages, while misses are
+     * fetched on a virtual thread. A failed lookup completes the stage
+     * exceptionally with the same exception types thrown by the blocking version.
+     * </p>
+     * @param user user id
+     * @param group agency id
+     * @param password password
+     * @return stage completed with the authentication result
+     */
+    public CompletionStage<Boolean> authenticateAsync(final String user, final String group, final String password) {
+        checkNotNullOrEmpty(user, "user");
+        checkNotNullOrEmpty(group, "group");
+        checkNotNullOrEmpty(password, "password");
 
-            authenticateCache.put(cacheKey, authenticateResponse);
+        final CacheKey cacheKey = createNetpunktCacheKey(user, group, password);
+        if (unifiedCache) {
+            return lookupAuthorizationAsync(cacheKey, user, group, password, authenticateCacheMetrics)
+                    .thenApply(Authorization::isAuthenticated);
+        }
+        final AuthenticateResponse authenticateResponse = authenticateCache.get(cacheKey);
+        if (authenticateResponse != null) {
+            authenticateCacheMetrics.hit();
+            return CompletableFuture.completedFuture(authenticateResponse.isAuthenticated());
+        }
+        final Authorization authorization = authorizeCache.get(cacheKey);
+        if (authorization != null) {
+            authenticateCacheMetrics.hit();
+            return CompletableFuture.completedFuture(authorization.isAuthenticated());
+        }
+        if (isRejectedLocally(cacheKey)) {
+            authenticateCacheMetrics.hit();
+            return CompletableFuture.completedFuture(false);
+        }
+        try {
+            checkNotThrottled(cacheKey);
+        } catch (IDPConnectorThrottledException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        authenticateCacheMetrics.miss();
+        final CompletableFuture<Authorization> pendingAuthorize = authorizeCalls.inFlight(cacheKey);
+        if (pendingAuthorize != null) {
+            return pendingAuthorize.thenApply(Authorization::isAuthenticated);
         }
 
-        return authenticateResponse.isAuthenticated();
+        return authenticateCalls.executeAsync(cacheKey,
+                () -> fetchAuthenticateResponse(cacheKey, user, group, password, newDeadline()), executor)
+                .thenApply(AuthenticateResponse::isAuthenticated);
     }
 
     public RightSet lookupRight(final String user, final String group, final String password) throws IDPConnectorException {
+        return lookupRight(user, group, password, newDeadline());
+    }
+
+    /**
+     * Looks up rights within a deadline
+     * <p>
+     * The timeout covers all attempts to ask the IDP, including retries and
+     * the waits between them, and waiting for a call already in flight for
+     * the same credentials. Stale rights are served if the deadline passes
+     * and the connector keeps any.
+     * </p>
+     * @param user user id
+     * @param group agency id
+     * @param password password
+     * @param timeout maximum time to wait for the IDP, must be positive
+     * @return rights of the user
+     * @throws IDPConnectorTimeoutException if the IDP did not answer in time
+     * @throws IDPConnectorThrottledException if the user has failed to authenticate too many times lately
+     * @throws IDPConnectorException on failure to ask the IDP
+     */
+    public RightSet lookupRight(final String user, final String group, final String password, Duration timeout)
+            throws IDPConnectorException {
+        return lookupRight(user, group, password, Deadline.after(timeout));
+    }
+
+    private RightSet lookupRight(final String user, final String group, final String password, Deadline deadline)
+            throws IDPConnectorException {
         checkNotNullOrEmpty(user, "user");
         checkNotNullOrEmpty(group, "group");
         checkNotNullOrEmpty(password, "password");
 
-        final String cacheKey = createNetpunktCacheKey(user, group, password);
-        AuthorizeResponse authorizeResponse = this.authorizeCache.get(cacheKey);
-        if (authorizeResponse == null) {
-            final NetpunktTripleDTO netpunktTripleDTO = new NetpunktTripleDTO();
-            netpunktTripleDTO.setAgencyId(group);
-            netpunktTripleDTO.setUserIdAut(user);
-            netpunktTripleDTO.setPasswordAut(password);
+        final CacheKey cacheKey = createNetpunktCacheKey(user, group, password);
+        return lookupAuthorization(cacheKey, user, group, password, authorizeCacheMetrics, deadline).getRights();
+    }
 
-            LOGGER.info("Fetching rights for {}/{}", group, user);
-            authorizeResponse = postRequest(PATH_AUTHORIZE, netpunktTripleDTO, AuthorizeResponse.class);
+    /**
+     * Asynchronous version of {@link #lookupRight(String, String, String)}
+     * <p>
+     * Cache hits are returned as already completed stages, while misses are
+     * fetched on a virtual thread. A failed lookup completes the stage
+     * exceptionally with the same exception types thrown by the blocking version.
+     * </p>
+     * @param user user id
+     * @param group agency id
+     * @param password password
+     * @return stage completed with the rights of the user
+     */
+    public CompletionStage<RightSet> lookupRightAsync(final String user, final String group, final String password) {
+        checkNotNullOrEmpty(user, "user");
+        checkNotNullOrEmpty(group, "group");
+        checkNotNullOrEmpty(password, "password");
 
-            authorizeCache.put(cacheKey, authorizeResponse);
+        final CacheKey cacheKey = createNetpunktCacheKey(user, group, password);
+        return lookupAuthorizationAsync(cacheKey, user, group, password, authorizeCacheMetrics)
+                .thenApply(Authorization::getRights);
+    }
+
+    /**
+     * Looks up the rights of many triples, for batch jobs
+     * <p>
+     * Duplicate triples are looked up once. Triples with cached rights are
+     * answered at once, while the rest are looked up on virtual threads, with
+     * at most the configured batch concurrency of lookups running at a time
+     * across all batches, leaving room for interactive lookups.
+     * </p>
+     * @param triples triples to look up
+     * @return rights of each distinct triple, or the reason its lookup failed
+     * @throws IllegalArgumentException if a triple is null
+     */
+    public LookupRightsResult lookupRights(Collection<NetpunktTripleDTO> triples) {
+        Objects.requireNonNull(triples, "triples");
+        for (NetpunktTripleDTO triple : triples) {
+            if (triple == null) {
+                throw new IllegalArgumentException("triples must not contain null");
+            }
+        }
+        final Map<NetpunktTripleDTO, RightSet> rights = new HashMap<>();
+        final Map<NetpunktTripleDTO, Exception> failures = new HashMap<>();
+        final Map<NetpunktTripleDTO, Future<Authorization>> pending = new HashMap<>();
+        for (NetpunktTripleDTO triple : new LinkedHashSet<>(triples)) {
+            final String user = triple.getUserIdAut();
+            final String group = triple.getAgencyId();
+            final String password = triple.getPasswordAut();
+            try {
+                checkNotNullOrEmpty(user, "user");
+                checkNotNullOrEmpty(group, "group");
+                checkNotNullOrEmpty(password, "password");
+            } catch (RuntimeException e) {
+                failures.put(triple, e);
+                continue;
+            }
+            final CacheKey cacheKey = createNetpunktCacheKey(user, group, password);
+            final Authorization cached = authorizeCache.get(cacheKey);
+            if (cached != null) {
+                authorizeCacheMetrics.hit();
+                rights.put(triple, cached.getRights());
+                continue;
+            }
+            pending.put(triple, executor.submit(() -> {
+                batchPermits.acquire();
+                try {
+                    return lookupAuthorization(cacheKey, user, group, password, authorizeCacheMetrics, newDeadline());
+                } finally {
+                    batchPermits.release();
+                }
+            }));
+        }
+        for (Map.Entry<NetpunktTripleDTO, Future<Authorization>> entry : pending.entrySet()) {
+            try {
+                rights.put(entry.getKey(), entry.getValue().get().getRights());
+            } catch (ExecutionException e) {
+                failures.put(entry.getKey(), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pending.values().forEach(future -> future.cancel(true));
+                throw new IllegalStateException("Interrupted while looking up rights", e);
+            }
+        }
+        return new LookupRightsResult(rights, failures);
+    }
+
+    private Authorization lookupAuthorization(CacheKey cacheKey, String user, String group, String password,
+                                              IDPConnectorMetrics.CacheMetrics cacheMetrics, Deadline deadline)
+            throws IDPConnectorException {
+        final ExpiringCache.Entry<Authorization> entry = authorizeCache.getEntry(cacheKey);
+        if (entry != null && authorizeCache.isFresh(entry)) {
+            cacheMetrics.hit();
+            refreshAheadIfDue(entry, cacheKey, user, group, password);
+            return entry.value;
+        }
+        if (isRejectedLocally(cacheKey)) {
+            cacheMetrics.hit();
+            return Authorization.REJECTED;
         }
+        checkNotThrottled(cacheKey);
+        cacheMetrics.miss();
 
-        final RightSet result = new RightSet();
+        try {
+            return authorizeCalls.execute(cacheKey,
+                    () -> fetchAuthorization(cacheKey, user, group, password, deadline), deadline);
+        } catch (IDPConnectorException | ProcessingException e) {
+            if (entry == null) {
+                throw e;
+            }
+            LOGGER.warn("Serving stale authorization for {}/{}: {}", group, user, e.getMessage());
+            return entry.value;
+        }
+    }
 
-        if (authorizeResponse.isAuthenticated() && authorizeResponse.getRights() != null) {
-            for (IDPRights idpRight : authorizeResponse.getRights()) {
-                result.add(idpRight.getProductName(), idpRight.getName());
+    private CompletableFuture<Authorization> lookupAuthorizationAsync(CacheKey cacheKey,
+                                                                      String user, String group, String password,
+                                                                      IDPConnectorMetrics.CacheMetrics cacheMetrics) {
+        final ExpiringCache.Entry<Authorization> entry = authorizeCache.getEntry(cacheKey);
+        if (entry != null && authorizeCache.isFresh(entry)) {
+            cacheMetrics.hit();
+            refreshAheadIfDue(entry, cacheKey, user, group, password);
+            return CompletableFuture.completedFuture(entry.value);
+        }
+        if (isRejectedLocally(cacheKey)) {
+            cacheMetrics.hit();
+            return CompletableFuture.completedFuture(Authorization.REJECTED);
+        }
+        try {
+            checkNotThrottled(cacheKey);
+        } catch (IDPConnectorThrottledException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        cacheMetrics.miss();
+
+        final CompletableFuture<Authorization> pending = authorizeCalls.executeAsync(cacheKey,
+                () -> fetchAuthorization(cacheKey, user, group, password, newDeadline()), executor);
+        if (entry == null) {
+            return pending;
+        }
+        return pending.handle((authorization, e) -> {
+            if (e == null) {
+                return authorization;
             }
+            final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof IDPConnectorException || cause instanceof ProcessingException) {
+                LOGGER.warn("Serving stale authorization for {}/{}: {}", group, user, cause.getMessage());
+                return entry.value;
+            }
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+        });
+    }
+
+    // A triple recently rejected by the IDP is rejected again without asking
+    private boolean isRejectedLocally(CacheKey cacheKey) {
+        return rejectedCache.get(cacheKey) != null;
+    }
+
+    /* Any unknown password for a user that has been rejected too many times
+     * lately is refused without asking. It is not known to be wrong, so the
+     * caller is told it was throttled rather than that it was rejected.
+     */
+    private void checkNotThrottled(CacheKey cacheKey) throws IDPConnectorThrottledException {
+        if (failedAttempts.isThrottled(cacheKey.getUser(), cacheKey.getGroup())) {
+            LOGGER.debug("Throttling {}/{} after repeated failed authentications",
+                    cacheKey.getGroup(), cacheKey.getUser());
+            metrics.throttled();
+            throw new IDPConnectorThrottledException(String.format(
+                    "Too many failed authentications of %s/%s, try again later",
+                    cacheKey.getGroup(), cacheKey.getUser()));
+        }
+    }
+
+    private void cacheRejection(CacheKey cacheKey) {
+        // Other replicas only need to know if the credentials were cached as
+        // valid, so guessed passwords do not cause a stream of invalidations
+        final boolean wasCached = authenticateCache.remove(cacheKey) | authorizeCache.remove(cacheKey);
+        if (wasCached) {
+            secondLevelCache.invalidate(cacheKey);
+        }
+        rejectedCache.put(cacheKey, Boolean.TRUE);
+        failedAttempts.recordFailure(cacheKey.getUser(), cacheKey.getGroup());
+    }
+
+    /* Starts a background refresh of a fresh entry once it has passed the
+     * refresh-ahead point, so callers keep getting the cached response
+     * while the IDP is asked for a new one.
+     */
+    private void refreshAheadIfDue(ExpiringCache.Entry<Authorization> entry,
+                                   CacheKey cacheKey, String user, String group, String password) {
+        if (isDueForRefresh(entry) && authorizeCalls.inFlight(cacheKey) == null) {
+            authorizeCalls.executeAsync(cacheKey,
+                    () -> fetchAuthorization(cacheKey, user, group, password, newDeadline()), executor)
+                    .whenComplete((authorization, e) -> {
+                        if (e != null) {
+                            LOGGER.warn("Refresh ahead of rights for {}/{} failed: {}", group, user, e.getMessage());
+                        }
+                    });
+        }
+    }
+
+    // Entries living by the max-age of the IDP are refreshed at the same fraction of their own lifetime
+    private boolean isDueForRefresh(ExpiringCache.Entry<Authorization> entry) {
+        final long timeToLive = authorizeCache.timeToLiveOf(entry);
+        return refreshAheadFactor > 0 && timeToLive > 0
+                && authorizeCache.ageOf(entry) >= (long) (timeToLive * refreshAheadFactor);
+    }
+
+    private boolean isDueForRefresh(long ageNanos) {
+        return refreshAheadNanos > 0 && ageNanos >= refreshAheadNanos;
+    }
+
+    private AuthenticateResponse fetchAuthenticateResponse(CacheKey cacheKey, String user, String group, String password,
+                                                           Deadline deadline) throws IDPConnectorException {
+        final AuthenticateResponse cached = authenticateCache.get(cacheKey);
+        if (cached != null) {
+            return cached;
         }
+        final SecondLevelCache.Hit<AuthenticateResponse> remote = secondLevelCache.getAuthenticateResponse(cacheKey);
+        if (remote != null) {
+            remoteCacheMetrics.hit();
+            authenticateCache.put(cacheKey, remote.value, remote.ageNanos);
+            return remote.value;
+        }
+        if (secondLevelCache.isEnabled()) {
+            remoteCacheMetrics.miss();
+        }
+
+        LOGGER.info("Authenticating {}/{}", group, user);
+        final AuthenticateResponse response = postRequest(PATH_AUTHENTICATE,
+                createNetpunktTriple(user, group, password),
+                entity -> readResponseEntity(entity, AuthenticateResponse.class), deadline);
 
-        return result;
+        if (response.isAuthenticated()) {
+            authenticateCache.put(cacheKey, response);
+            secondLevelCache.putAuthenticateResponse(cacheKey, response);
+            failedAttempts.recordSuccess(user, group);
+        } else {
+            cacheRejection(cacheKey);
+        }
+        return response;
     }
 
+    private Authorization fetchAuthorization(CacheKey cacheKey, String user, String group, String password,
+                                             Deadline deadline) throws IDPConnectorException {
+        final ExpiringCache.Entry<Authorization> cached = authorizeCache.getEntry(cacheKey);
+        if (cached != null && authorizeCache.isFresh(cached) && !isDueForRefresh(cached)) {
+            return cached.value;
+        }
+        // Another replica may have fetched or refreshed the entry already
+        final SecondLevelCache.Hit<Authorization> remote = secondLevelCache.getAuthorization(cacheKey);
+        if (remote != null && !isDueForRefresh(remote.ageNanos)) {
+            remoteCacheMetrics.hit();
+            authorizeCache.put(cacheKey, remote.value, remote.ageNanos, remote.value.getDirectives().getMaxAge());
+            return remote.value;
+        }
+        if (secondLevelCache.isEnabled()) {
+            remoteCacheMetrics.miss();
+        }
+
+        // Rights still held, fresh or stale, are revalidated if the IDP gave validators for them
+        final CacheDirectives previous = cached != null ? cached.value.getDirectives() : CacheDirectives.NONE;
+        final Map<String, String> conditions = previous.hasValidators() ? previous.conditionalHeaders() : Map.of();
+        LOGGER.info(conditions.isEmpty() ? "Fetching rights for {}/{}" : "Revalidating rights for {}/{}", group, user);
+        final Authorization authorization = postRequest(PATH_AUTHORIZE,
+                createNetpunktTriple(user, group, password), conditions, response -> {
+                    if (response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                        return cached.value.withDirectives(CacheDirectives.of(response).revalidating(previous));
+                    }
+                    return readAuthorization(response).withDirectives(CacheDirectives.of(response));
+                }, deadline);
+
+        if (authorization.isAuthenticated()) {
+            authorizeCache.put(cacheKey, authorization, 0, authorization.getDirectives().getMaxAge());
+            secondLevelCache.putAuthorization(cacheKey, authorization);
+            failedAttempts.recordSuccess(user, group);
+        } else {
+            cacheRejection(cacheKey);
+        }
+        return authorization;
+    }
+
+    /* Requests are only made while the circuit breaker is closed, or half-open
+     * and trying, and the concurrency limit is not reached. Otherwise an
+     * IDPConnectorUnavailableException is thrown at once, which callers of
+     * lookupRight answer with stale rights if they have any.
+     */
     private <T> T postRequest(String basePath,
                               NetpunktTripleDTO data,
-                              Class<T> type) throws IDPConnectorException {
+                              EntityReader<T> entityReader,
+                              Deadline deadline) throws IDPConnectorException {
+        return postRequest(basePath, data, Map.of(), entityReader, deadline);
+    }
+
+    /* Given conditions the request is conditional, and the entity reader
+     * must also handle a 304 Not Modified response.
+     */
+    private <T> T postRequest(String basePath,
+                              NetpunktTripleDTO data,
+                              Map<String, String> conditions,
+                              EntityReader<T> entityReader,
+                              Deadline deadline) throws IDPConnectorException {
+        final IDPConnectorMetrics.RequestMetrics requestMetrics = metrics.request(basePath);
+        if (circuitBreaker == null) {
+            return requestRetrier.execute(
+                    () -> sendRequest(basePath, data, conditions, entityReader, deadline, requestMetrics),
+                    deadline, requestMetrics);
+        }
+        if (!circuitBreaker.allowsExecution()) {
+            requestMetrics.rejected("circuit-breaker");
+            throw new IDPConnectorUnavailableException("IDP circuit breaker is open");
+        }
+        // The breaker sees a call once, however many attempts it took, so
+        // retries and hedges of a single failing call cannot open it
+        circuitBreaker.preExecute();
+        try {
+            final T entity = requestRetrier.execute(
+                    () -> sendRequest(basePath, data, conditions, entityReader, deadline, requestMetrics),
+                    deadline, requestMetrics);
+            circuitBreaker.recordSuccess();
+            return entity;
+        } catch (IDPConnectorException | RuntimeException e) {
+            if (RequestRetrier.isRetriable(e)) {
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordSuccess();
+            }
+            throw e;
+        }
+    }
+
+    // A single try, hedged if enabled and abandoned when the deadline passes
+    private <T> T sendRequest(String basePath,
+                              NetpunktTripleDTO data,
+                              Map<String, String> conditions,
+                              EntityReader<T> entityReader,
+                              Deadline deadline,
+                              IDPConnectorMetrics.RequestMetrics requestMetrics) throws IDPConnectorException {
+        if (requestHedger == null) {
+            return deadline.run(executor,
+                    abandoned -> attemptRequest(basePath, data, conditions, entityReader, requestMetrics, abandoned));
+        }
+        return deadline.run(executor, ignored -> requestHedger.execute(
+                abandoned -> attemptRequest(basePath, data, conditions, entityReader, requestMetrics, abandoned),
+                requestMetrics));
+    }
+
+    private Deadline newDeadline() {
+        return requestDeadline.isZero() ? Deadline.NONE : Deadline.after(requestDeadline);
+    }
+
+    private <T> T attemptRequest(String basePath,
+                                 NetpunktTripleDTO data,
+                                 Map<String, String> conditions,
+                                 EntityReader<T> entityReader,
+                                 IDPConnectorMetrics.RequestMetrics requestMetrics,
+                                 AtomicBoolean abandoned) throws IDPConnectorException {
+        if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+            requestMetrics.rejected("concurrency-limit");
+            throw new IDPConnectorUnavailableException(String.format(
+                    "IDP concurrency limit of %d requests reached", concurrencyLimiter.getLimit()));
+        }
         final StopWatch watch = new Log4JStopWatch();
+        requestMetrics.started();
+        final EndpointBalancer.Endpoint endpoint = endpoints.acquire();
+        final long start = System.nanoTime();
+        boolean success = false;
+        int status = 0;
         try {
             final HttpPost httpPost = new HttpPost(failSafeHttpClient)
-                    .withBaseUrl(baseUrl)
+                    .withBaseUrl(endpoint.getBaseUrl())
                     .withPathElements(basePath)
                     .withData(data, "application/json")
                     .withHeader("Accept", "application/json");
+            conditions.forEach(httpPost::withHeader);
             final Response response = httpPost.execute();
-            assertResponseStatus(response, Response.Status.OK);
-            return readResponseEntity(response, type);
+            status = response.getStatus();
+            if (!conditions.isEmpty() && status == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                requestMetrics.notModified();
+                assertResponseStatus(response, Response.Status.OK, Response.Status.NOT_MODIFIED);
+            } else {
+                if (status != Response.Status.OK.getStatusCode()) {
+                    requestMetrics.unexpectedStatus(status);
+                }
+                assertResponseStatus(response, Response.Status.OK);
+            }
+            final T entity = entityReader.read(response);
+            success = true;
+            return entity;
+        } catch (IDPConnectorException | RuntimeException e) {
+            if (!abandoned.get()) {
+                requestMetrics.error();
+            }
+            throw e;
         } finally {
+            final long elapsed = System.nanoTime() - start;
+            requestMetrics.finished(Duration.ofNanos(elapsed));
+            // A hedged request interrupted because the other one answered
+            // first has not failed, and took at least the time elapsed. Leaving
+            // it out would skew the latencies that hedging is based on.
+            final boolean interrupted = !success && abandoned.get();
+            // No response or a server error means the IDP is in trouble, other
+            // failures are about the request and say nothing about the IDP
+            final boolean failed = !success && !interrupted && (status == 0 || status >= 500);
+            healthMonitor.record(elapsed, !failed);
+            endpoints.release(endpoint, elapsed, failed);
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.release(elapsed, failed);
+            }
             watch.stop("POST " + basePath);
         }
     }
@@ -157,8 +975,9 @@ public class IDPConnector {
         if (!Arrays.asList(expectedStatus).contains(actualStatus)) {
             try {
                 final MessageDTO messageDTO = response.readEntity(MessageDTO.class);
-                throw new IDPConnectorException(String.format("Exception from IDP with status code %s and message '%s'",
-                        response.getStatus(), messageDTO.getMessage()));
+                throw new IDPConnectorUnexpectedStatusCodeException(String.format(
+                        "Exception from IDP with status code %s and message '%s'",
+                        response.getStatus(), messageDTO.getMessage()), response.getStatus());
             } catch (ProcessingException e) {
                 throw new IDPConnectorUnexpectedStatusCodeException(
                         String.format("IDP service returned with unexpected status code: %s", actualStatus),
@@ -177,6 +996,29 @@ public class IDPConnector {
         return entity;
     }
 
+    /* Authorize responses can hold hundreds of rights, so they are decoded
+     * by streaming straight into an Authorization instead of through the
+     * JSON provider of the client.
+     */
+    private Authorization readAuthorization(Response response) throws IDPConnectorException {
+        final Authorization authorization;
+        try (InputStream in = response.readEntity(InputStream.class)) {
+            authorization = AuthorizationDecoder.decode(in);
+        } catch (IOException e) {
+            throw new IDPConnectorException("Unable to decode authorize response from IDP: " + e.getMessage());
+        }
+        if (authorization == null) {
+            throw new IDPConnectorException(
+                    String.format("IDP service returned with null-valued %s entity", AuthorizeResponse.class.getName()));
+        }
+        return authorization;
+    }
+
+    @FunctionalInterface
+    private interface EntityReader<T> {
+        T read(Response response) throws IDPConnectorException;
+    }
+
     private void checkNotNullOrEmpty(String value, String name) {
         Objects.requireNonNull(value, name);
         if (value.isEmpty()) {
@@ -184,29 +1026,101 @@ public class IDPConnector {
         }
     }
 
-    public class RightSet {
-        HashMap<String, HashSet<String>> rights;
+    /**
+     * Immutable set of rights
+     * <p>
+     * Built once per IDP response and shared by all lookups answered from
+     * the cache. Product and right names are interned, and so are the sets
+     * themselves: equal sets share one instance as long as any cache entry
+     * holds it, so memory grows with the number of distinct rights profiles
+     * rather than the number of users.
+     * </p>
+     */
+    public static class RightSet {
+        static final RightSet EMPTY = new RightSet(Map.of());
 
-        private RightSet() {
-            this.rights = new HashMap<>();
-        }
+        // Most users of an agency share their rights, so cached entries share one instance of them
+        static final WeakInterner<RightSet> CANONICAL = new WeakInterner<>();
 
-        private void add(String name, String right) {
-            this.rights.computeIfAbsent(name, k -> new HashSet<>());
+        final Map<String, Set<String>> rights;
+        private final int hash;
 
-            this.rights.get(name).add(right);
+        private RightSet(Map<String, Set<String>> rights) {
+            this.rights = rights;
+            this.hash = rights.hashCode();
+        }
+
+        static RightSet of(List<IDPRights> idpRights) {
+            if (idpRights == null || idpRights.isEmpty()) {
+                return EMPTY;
+            }
+            final Builder builder = new Builder();
+            for (IDPRights idpRight : idpRights) {
+                builder.add(idpRight.getProductName(), idpRight.getName());
+            }
+            return builder.build();
         }
 
         public boolean hasRight(String name, String right) {
-            return this.rights.containsKey(name) && this.rights.get(name).contains(right);
+            if (name == null || right == null) {
+                return false;
+            }
+            final Set<String> names = this.rights.get(name);
+            return names != null && names.contains(right);
         }
 
         public boolean hasRightName(String name) {
-            return this.rights.containsKey(name);
+            return name != null && this.rights.containsKey(name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            RightSet that = (RightSet) o;
+            return rights.equals(that.rights);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
         }
 
         public String toString() {
             return "RightSet{rights=" + this.rights + '}';
         }
+
+        /**
+         * Collects rights one at a time, for decoders that never hold
+         * a list of {@link IDPRights}
+         */
+        static final class Builder {
+            private final HashMap<String, HashSet<String>> products = new HashMap<>();
+
+            /**
+             * @param productName product name, the right is ignored if null
+             * @param name right name, or null to only add the product
+             * @return this builder
+             */
+            Builder add(String productName, String name) {
+                if (productName == null) {
+                    return this;
+                }
+                final HashSet<String> names = products.computeIfAbsent(productName.intern(), k -> new HashSet<>());
+                if (name != null) {
+                    names.add(name.intern());
+                }
+                return this;
+            }
+
+            RightSet build() {
+                if (products.isEmpty()) {
+                    return EMPTY;
+                }
+                final HashMap<String, Set<String>> rights = new HashMap<>(products.size());
+                products.forEach((name, names) -> rights.put(name, Set.copyOf(names)));
+                return CANONICAL.intern(new RightSet(Map.copyOf(rights)));
+            }
+        }
     }
 }
@@ -4,16 +4,26 @@ import dk.dbc.commons.useragent.UserAgent;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.enterprise.inject.Instance;
 import jakarta.enterprise.inject.Produces;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.Readiness;
+import org.eclipse.microprofile.metrics.MetricRegistry;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -38,7 +48,25 @@ import java.util.concurrent.TimeUnit;
  * <p>
  * CDI case depends on the idp service baseurl being defined as
  * the value of either a system property or environment variable
- * named IDP_SERVICE_URL.
+ * named IDP_SERVICE_URL. To balance requests across IDP replicas
+ * list their base URLs separated by commas.
+ * </p>
+ * <p>
+ * If a MicroProfile Metrics registry is available, the CDI managed
+ * connector registers its cache and request metrics with it.
+ * </p>
+ * <p>
+ * Likewise, if the application provides a {@link RemoteCache} bean, the CDI
+ * managed connector uses it as second level cache.
+ * </p>
+ * <p>
+ * Firing an {@link IDPRightsChangedEvent} drops the cached entries it
+ * concerns from the CDI managed connector.
+ * </p>
+ * <p>
+ * The factory also produces a readiness health check reporting down when
+ * at least half of the recent requests to the IDP service failed, see
+ * {@link IDPConnectorHealthCheck}.
  * </p>
  */
 @ApplicationScoped
@@ -60,17 +88,48 @@ public class IDPConnectorFactory {
                 .register(new JacksonConfig())
                 .register(new JacksonFeature());
         LOGGER.info("Creating IDPConnector for: {}, with connection timeout: {}, and read timeout: {}", idpBaseUrl, connectionTimeout, readTimeout);
-        return new IDPConnector(client, UserAgent.forInternalRequests(), idpBaseUrl);
+        return new IDPConnector(client, UserAgent.forInternalRequests(), baseUrls(idpBaseUrl), new IDPConnectorSettings());
     }
 
     public static IDPConnector create(String idpBaseUrl, int cacheAge, Duration connectionTimeout, Duration readTimeout) {
-        final Client client = ClientBuilder.newBuilder()
-                .connectTimeout(connectionTimeout.toMillis(), TimeUnit.MILLISECONDS)
-                .readTimeout(readTimeout.toMillis(), TimeUnit.MILLISECONDS).build()
-                .register(new JacksonConfig())
-                .register(new JacksonFeature());
-        LOGGER.info("Creating IDPConnector for: {}, with connection timeout: {}, and read timeout: {}", idpBaseUrl, connectionTimeout, readTimeout);
-        return new IDPConnector(client, UserAgent.forInternalRequests(), idpBaseUrl, cacheAge);
+        return create(idpBaseUrl, new IDPConnectorSettings()
+                .withCacheAge(Duration.ofHours(cacheAge))
+                .withConnectTimeout(connectionTimeout)
+                .withReadTimeout(readTimeout));
+    }
+
+    /**
+     * @param idpBaseUrl base URL of the IDP, or base URLs of IDP replicas separated by commas
+     * @param settings connector settings
+     * @return connector
+     */
+    public static IDPConnector create(String idpBaseUrl, IDPConnectorSettings settings) {
+        return create(baseUrls(idpBaseUrl), settings);
+    }
+
+    public static IDPConnector create(List<String> idpBaseUrls, IDPConnectorSettings settings) {
+        final Client client = settings.getConnectionPoolSize() > 0
+                ? PooledTransport.newClient(settings)
+                : ClientBuilder.newBuilder()
+                        .connectTimeout(settings.getConnectTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                        .readTimeout(settings.getReadTimeout().toMillis(), TimeUnit.MILLISECONDS).build()
+                        .register(new JacksonConfig())
+                        .register(new JacksonFeature());
+        LOGGER.info("Creating IDPConnector for: {}, with {}", idpBaseUrls, settings);
+        return new IDPConnector(client, UserAgent.forInternalRequests(), idpBaseUrls, settings);
+    }
+
+    static List<String> baseUrls(String idpBaseUrl) {
+        final List<String> baseUrls = new ArrayList<>();
+        for (String baseUrl : idpBaseUrl.split(",")) {
+            if (!baseUrl.isBlank()) {
+                baseUrls.add(baseUrl.trim());
+            }
+        }
+        if (baseUrls.isEmpty()) {
+            throw new IllegalArgumentException("No IDP base URL in '" + idpBaseUrl + "'");
+        }
+        return baseUrls;
     }
 
     @Inject
@@ -81,6 +140,18 @@ public class IDPConnectorFactory {
     @ConfigProperty(name = "IDP_CACHE_AGE", defaultValue = "8")
     private int cacheAge;
 
+    @Inject
+    @ConfigProperty(name = "IDP_CACHE_MAX_SIZE", defaultValue = "0")
+    private long cacheMaximumSize;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CACHE_REFRESH_AHEAD_FACTOR", defaultValue = "0")
+    private double refreshAheadFactor;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CACHE_STALE_IF_ERROR_DURATION", defaultValue = "PT0S")
+    private Duration staleIfErrorWindow;
+
     @Inject
     @ConfigProperty(name = "IDP_CONNECT_TIMEOUT_DURATION", defaultValue = "PT0.5S")
     private Duration connectionTimeout;
@@ -89,11 +160,168 @@ public class IDPConnectorFactory {
     @ConfigProperty(name = "IDP_READ_TIMEOUT_DURATION", defaultValue = "PT3.0S")
     private Duration readTimeout;
 
+    @Inject
+    @ConfigProperty(name = "IDP_CONNECTION_POOL_SIZE", defaultValue = "0")
+    private int connectionPoolSize;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CONNECTION_POOL_MAX_PER_ROUTE", defaultValue = "0")
+    private int maxConnectionsPerRoute;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CONNECTION_IDLE_TIMEOUT", defaultValue = "PT30S")
+    private Duration connectionIdleTimeout;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CONNECTION_PREWARM", defaultValue = "0")
+    private int prewarmConnections;
+
+    @Inject
+    @ConfigProperty(name = "IDP_OFF_HEAP_CACHE_MB", defaultValue = "0")
+    private long offHeapCacheMegabytes;
+
+    @Inject
+    @ConfigProperty(name = "IDP_MAX_RETRIES", defaultValue = "2")
+    private int maxRetries;
+
+    @Inject
+    @ConfigProperty(name = "IDP_RETRY_BACKOFF", defaultValue = "PT0.1S")
+    private Duration retryBackoff;
+
+    @Inject
+    @ConfigProperty(name = "IDP_RETRY_BUDGET", defaultValue = "0.1")
+    private double retryBudget;
+
+    @Inject
+    @ConfigProperty(name = "IDP_REQUEST_DEADLINE", defaultValue = "PT5S")
+    private Duration requestDeadline;
+
+    @Inject
+    @ConfigProperty(name = "IDP_OUTLIER_FAILURE_THRESHOLD", defaultValue = "5")
+    private int outlierFailureThreshold;
+
+    @Inject
+    @ConfigProperty(name = "IDP_OUTLIER_EJECTION_TIME", defaultValue = "PT30S")
+    private Duration outlierEjectionTime;
+
+    @Inject
+    @ConfigProperty(name = "IDP_SLOW_START_WINDOW", defaultValue = "PT30S")
+    private Duration slowStartWindow;
+
+    @Inject
+    @ConfigProperty(name = "IDP_HEDGE_PERCENTILE", defaultValue = "0")
+    private double hedgePercentile;
+
+    @Inject
+    @ConfigProperty(name = "IDP_HEDGE_MIN_DELAY", defaultValue = "PT0.05S")
+    private Duration hedgeMinimumDelay;
+
+    @Inject
+    @ConfigProperty(name = "IDP_HEDGE_BUDGET", defaultValue = "0.1")
+    private double hedgeBudget;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CACHE_SNAPSHOT_FILE")
+    private Optional<String> cacheSnapshotFile;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CACHE_SECRET")
+    private Optional<String> cacheSecret;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CACHE_SNAPSHOT_INTERVAL", defaultValue = "PT5M")
+    private Duration cacheSnapshotInterval;
+
+    @Inject
+    @ConfigProperty(name = "IDP_UNIFIED_CACHE", defaultValue = "false")
+    private boolean unifiedCache;
+
+    @Inject
+    @ConfigProperty(name = "IDP_NEGATIVE_CACHE_AGE", defaultValue = "PT5M")
+    private Duration negativeCacheAge;
+
+    @Inject
+    @ConfigProperty(name = "IDP_NEGATIVE_CACHE_MAX_SIZE", defaultValue = "10000")
+    private long negativeCacheMaximumSize;
+
+    @Inject
+    @ConfigProperty(name = "IDP_MAX_FAILED_ATTEMPTS", defaultValue = "0")
+    private int maxFailedAttempts;
+
+    @Inject
+    @ConfigProperty(name = "IDP_FAILED_ATTEMPTS_WINDOW", defaultValue = "PT15M")
+    private Duration failedAttemptsWindow;
+
+    @Inject
+    @ConfigProperty(name = "IDP_BATCH_CONCURRENCY", defaultValue = "8")
+    private int batchConcurrency;
+
+    @Inject
+    @ConfigProperty(name = "IDP_HEALTH_PROBE_INTERVAL", defaultValue = "PT30S")
+    private Duration healthProbeInterval;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CIRCUIT_BREAKER_FAILURE_THRESHOLD", defaultValue = "5")
+    private int circuitBreakerFailureThreshold;
+
+    @Inject
+    @ConfigProperty(name = "IDP_CIRCUIT_BREAKER_DELAY", defaultValue = "PT10S")
+    private Duration circuitBreakerDelay;
+
+    @Inject
+    @ConfigProperty(name = "IDP_MAX_CONCURRENT_REQUESTS", defaultValue = "100")
+    private int maxConcurrentRequests;
+
+    @Inject
+    private Instance<MetricRegistry> metricRegistry;
+
+    @Inject
+    private Instance<RemoteCache> remoteCache;
+
     IDPConnector idpConnector;
 
     @PostConstruct
     public void initializeConnector() {
-        idpConnector = IDPConnectorFactory.create(idpBaseUrl, cacheAge, connectionTimeout, readTimeout);
+        idpConnector = IDPConnectorFactory.create(idpBaseUrl, new IDPConnectorSettings()
+                .withCacheAge(Duration.ofHours(cacheAge))
+                .withCacheMaximumSize(cacheMaximumSize)
+                .withOffHeapCacheSize(offHeapCacheMegabytes << 20)
+                .withRefreshAheadFactor(refreshAheadFactor)
+                .withStaleIfErrorWindow(staleIfErrorWindow)
+                .withUnifiedCache(unifiedCache)
+                .withCacheSecret(cacheSecret.map(secret -> secret.getBytes(StandardCharsets.UTF_8)).orElse(null))
+                .withCacheSnapshot(cacheSnapshotFile.map(Path::of).orElse(null))
+                .withCacheSnapshotInterval(cacheSnapshotInterval)
+                .withNegativeCacheAge(negativeCacheAge)
+                .withNegativeCacheMaximumSize(negativeCacheMaximumSize)
+                .withMaxFailedAttempts(maxFailedAttempts)
+                .withFailedAttemptsWindow(failedAttemptsWindow)
+                .withConnectTimeout(connectionTimeout)
+                .withReadTimeout(readTimeout)
+                .withConnectionPoolSize(connectionPoolSize)
+                .withMaxConnectionsPerRoute(maxConnectionsPerRoute)
+                .withConnectionIdleTimeout(connectionIdleTimeout)
+                .withBatchConcurrency(batchConcurrency)
+                .withHedgePercentile(hedgePercentile)
+                .withHedgeMinimumDelay(hedgeMinimumDelay)
+                .withHedgeBudget(hedgeBudget)
+                .withMaxRetries(maxRetries)
+                .withRetryBackoff(retryBackoff)
+                .withRetryBudget(retryBudget)
+                .withRequestDeadline(requestDeadline)
+                .withOutlierFailureThreshold(outlierFailureThreshold)
+                .withOutlierEjectionTime(outlierEjectionTime)
+                .withSlowStartWindow(slowStartWindow)
+                .withHealthProbeInterval(healthProbeInterval)
+                .withCircuitBreakerFailureThreshold(circuitBreakerFailureThreshold)
+                .withCircuitBreakerDelay(circuitBreakerDelay)
+                .withMaxConcurrentRequests(maxConcurrentRequests)
+                .withRemoteCache(remoteCache.isResolvable() ? remoteCache.get() : null)
+                .withMetricRegistry(metricRegistry.isResolvable() ? metricRegistry.get() : null));
+        if (prewarmConnections > 0) {
+            final int opened = idpConnector.prewarm(prewarmConnections, connectionTimeout.plus(readTimeout));
+            LOGGER.info("Prewarmed {} of {} connections to the IDP", opened, prewarmConnections);
+        }
     }
 
     @Produces
@@ -101,6 +329,16 @@ public class IDPConnectorFactory {
         return idpConnector;
     }
 
+    @Produces
+    @Readiness
+    public HealthCheck getReadinessCheck() {
+        return new IDPConnectorHealthCheck(idpConnector.getHealthMonitor());
+    }
+
+    public void onRightsChanged(@Observes IDPRightsChangedEvent event) {
+        idpConnector.invalidate(event);
+    }
+
     @PreDestroy
     public void tearDownConnector() {
         idpConnector.close();
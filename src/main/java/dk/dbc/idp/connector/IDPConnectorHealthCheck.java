@@ -0,0 +1,41 @@
+package dk.dbc.idp.connector;
+
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.HealthCheckResponseBuilder;
+
+/**
+ * Readiness check of the IDP service as seen by a connector
+ * <p>
+ * Reports down when the IDP is unreachable as judged by the error rate of
+ * recent requests, see {@link IDPHealthMonitor#snapshot()}. The check is
+ * answered from the requests the connector has already made, see
+ * {@link IDPHealthMonitor}, so it is cheap and never waits for the IDP.
+ * </p>
+ */
+class IDPConnectorHealthCheck implements HealthCheck {
+    static final String NAME = "idp-connector";
+
+    private final IDPHealthMonitor monitor;
+
+    IDPConnectorHealthCheck(IDPHealthMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    @Override
+    public HealthCheckResponse call() {
+        final IDPHealthMonitor.Snapshot snapshot = monitor.snapshot();
+        final HealthCheckResponseBuilder builder = HealthCheckResponse.named(NAME)
+                .status(snapshot.state != IDPHealthMonitor.State.UNREACHABLE)
+                .withData("state", snapshot.state.name().toLowerCase())
+                .withData("requests", snapshot.requests)
+                .withData("errors", snapshot.errors)
+                .withData("errorRate", String.format("%.3f", snapshot.errorRate()));
+        if (snapshot.requests > 0) {
+            builder.withData("p50Millis", snapshot.p50.toMillis())
+                    .withData("p95Millis", snapshot.p95.toMillis())
+                    .withData("p99Millis", snapshot.p99.toMillis());
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,241 @@
+package dk.dbc.idp.connector;
+
+import net.jodah.failsafe.CircuitBreaker;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.eclipse.microprofile.metrics.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MicroProfile Metrics instrumentation of an {@link IDPConnector}
+ * <p>
+ * Registers the following metrics, all recording is a no-op when no
+ * registry is given:
+ * </p>
+ * <ul>
+ *     <li>idp.connector.cache.hits, idp.connector.cache.misses and
+ *     idp.connector.cache.size tagged with cache</li>
+ *     <li>idp.connector.cache.evictions tagged with cache and cause</li>
+ *     <li>idp.connector.requests timer tagged with path</li>
+ *     <li>idp.connector.requests.inflight gauge tagged with path</li>
+ *     <li>idp.connector.requests.errors tagged with path</li>
+ *     <li>idp.connector.requests.unexpected.status tagged with path and status</li>
+ *     <li>idp.connector.requests.not.modified tagged with path, conditional requests answered by 304</li>
+ *     <li>idp.connector.requests.rejected tagged with path and reason</li>
+ *     <li>idp.connector.requests.retried and idp.connector.requests.retry.skipped,
+ *     retries not made for want of budget, tagged with path</li>
+ *     <li>idp.connector.requests.hedged, idp.connector.requests.hedge.wins and
+ *     idp.connector.requests.hedge.skipped tagged with path</li>
+ *     <li>idp.connector.circuitbreaker.open gauge, 1 when open and 0 otherwise</li>
+ *     <li>idp.connector.concurrency.limit gauge</li>
+ *     <li>idp.connector.endpoint.latency gauge in milliseconds and idp.connector.endpoint.ejected
+ *     gauge, 1 when ejected and 0 otherwise, tagged with endpoint</li>
+ *     <li>idp.connector.authentications.throttled</li>
+ * </ul>
+ */
+class IDPConnectorMetrics {
+    static final String AUTHENTICATE_CACHE = "authenticate";
+    static final String AUTHORIZE_CACHE = "authorize";
+    static final String REJECTED_CACHE = "rejected";
+    static final String REMOTE_CACHE = "remote";
+    static final String OFF_HEAP_CACHE = "offheap";
+
+    private final MetricRegistry registry;
+    private final ConcurrentHashMap<String, RequestMetrics> requestMetrics = new ConcurrentHashMap<>();
+
+    /**
+     * @param registry registry to register metrics with, or null to disable metrics
+     */
+    IDPConnectorMetrics(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Registers metrics of a cache whose size is not known
+     * @param name cache name used as tag value
+     * @return metrics of the cache
+     */
+    CacheMetrics cache(String name) {
+        return new CacheMetrics(name);
+    }
+
+    /**
+     * Registers metrics of a cache
+     * @param name cache name used as tag value
+     * @param cache the cache
+     * @return metrics of the cache
+     */
+    CacheMetrics cache(String name, ExpiringCache<?, ?> cache) {
+        final CacheMetrics cacheMetrics = new CacheMetrics(name);
+        if (registry != null) {
+            registry.gauge("idp.connector.cache.size", cache, ExpiringCache::size, new Tag("cache", name));
+        }
+        return cacheMetrics;
+    }
+
+    /**
+     * Registers metrics of the off-heap store
+     * @param cache the off-heap store
+     * @return metrics of the off-heap store
+     */
+    CacheMetrics offHeapCache(OffHeapCache cache) {
+        final CacheMetrics cacheMetrics = new CacheMetrics(OFF_HEAP_CACHE);
+        if (registry != null) {
+            registry.gauge("idp.connector.cache.size", cache, OffHeapCache::size, new Tag("cache", OFF_HEAP_CACHE));
+        }
+        return cacheMetrics;
+    }
+
+    void circuitBreaker(CircuitBreaker<?> circuitBreaker) {
+        if (registry != null) {
+            registry.gauge("idp.connector.circuitbreaker.open", circuitBreaker, cb -> cb.isOpen() ? 1 : 0);
+        }
+    }
+
+    void throttled() {
+        if (registry != null) {
+            registry.counter("idp.connector.authentications.throttled").inc();
+        }
+    }
+
+    void concurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        if (registry != null) {
+            registry.gauge("idp.connector.concurrency.limit", concurrencyLimiter, ConcurrencyLimiter::getLimit);
+        }
+    }
+
+    void endpoints(EndpointBalancer balancer) {
+        if (registry != null) {
+            for (EndpointBalancer.Endpoint endpoint : balancer.getEndpoints()) {
+                final Tag tag = new Tag("endpoint", endpoint.getBaseUrl());
+                registry.gauge("idp.connector.endpoint.latency", endpoint,
+                        EndpointBalancer.Endpoint::getLatencyMillis, tag);
+                registry.gauge("idp.connector.endpoint.ejected", endpoint,
+                        e -> e.isAvailable(System.nanoTime()) ? 0 : 1, tag);
+            }
+        }
+    }
+
+    /**
+     * @param path request path
+     * @return metrics of requests to the path
+     */
+    RequestMetrics request(String path) {
+        return requestMetrics.computeIfAbsent(path, RequestMetrics::new);
+    }
+
+    class CacheMetrics {
+        private final String name;
+        private final Counter hits;
+        private final Counter misses;
+
+        private CacheMetrics(String name) {
+            this.name = name;
+            this.hits = registry == null ? null : registry.counter("idp.connector.cache.hits", new Tag("cache", name));
+            this.misses = registry == null ? null : registry.counter("idp.connector.cache.misses", new Tag("cache", name));
+        }
+
+        void hit() {
+            if (hits != null) {
+                hits.inc();
+            }
+        }
+
+        void miss() {
+            if (misses != null) {
+                misses.inc();
+            }
+        }
+
+        void eviction(ExpiringCache.RemovalCause cause) {
+            if (registry != null) {
+                registry.counter("idp.connector.cache.evictions",
+                        new Tag("cache", name), new Tag("cause", cause.name().toLowerCase())).inc();
+            }
+        }
+    }
+
+    class RequestMetrics {
+        private final String path;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Timer timer;
+        private final Counter errors;
+
+        private RequestMetrics(String path) {
+            this.path = path;
+            if (registry != null) {
+                this.timer = registry.timer("idp.connector.requests", new Tag("path", path));
+                this.errors = registry.counter("idp.connector.requests.errors", new Tag("path", path));
+                registry.gauge("idp.connector.requests.inflight", inFlight, AtomicInteger::get, new Tag("path", path));
+            } else {
+                this.timer = null;
+                this.errors = null;
+            }
+        }
+
+        void started() {
+            inFlight.incrementAndGet();
+        }
+
+        void finished(Duration elapsed) {
+            inFlight.decrementAndGet();
+            if (timer != null) {
+                timer.update(elapsed);
+            }
+        }
+
+        void error() {
+            if (errors != null) {
+                errors.inc();
+            }
+        }
+
+        void rejected(String reason) {
+            if (registry != null) {
+                registry.counter("idp.connector.requests.rejected",
+                        new Tag("path", path), new Tag("reason", reason)).inc();
+            }
+        }
+
+        void notModified() {
+            count("idp.connector.requests.not.modified");
+        }
+
+        void retried() {
+            count("idp.connector.requests.retried");
+        }
+
+        void retrySkipped() {
+            count("idp.connector.requests.retry.skipped");
+        }
+
+        void hedged() {
+            count("idp.connector.requests.hedged");
+        }
+
+        void hedgeWon() {
+            count("idp.connector.requests.hedge.wins");
+        }
+
+        void hedgeSkipped() {
+            count("idp.connector.requests.hedge.skipped");
+        }
+
+        private void count(String name) {
+            if (registry != null) {
+                registry.counter(name, new Tag("path", path)).inc();
+            }
+        }
+
+        void unexpectedStatus(int status) {
+            if (registry != null) {
+                registry.counter("idp.connector.requests.unexpected.status",
+                        new Tag("path", path), new Tag("status", Integer.toString(status))).inc();
+            }
+        }
+    }
+}
@@ -0,0 +1,718 @@
+package dk.dbc.idp.connector;
+
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Tunables for an {@link IDPConnector}
+ * <p>
+ * Synopsis:
+ * </p>
+ * <pre>
+ *    IDPConnectorSettings settings = new IDPConnectorSettings()
+ *            .withCacheAge(Duration.ofHours(4))
+ *            .withCacheMaximumSize(50000);
+ *    IDPConnector connector = IDPConnectorFactory.create("http://idp-service", settings);
+ * </pre>
+ * <p>
+ * Settings are read when a connector is created, later changes to a
+ * settings instance do not affect existing connectors.
+ * </p>
+ */
+public class IDPConnectorSettings {
+    public static final Duration DEFAULT_CACHE_AGE = Duration.ofHours(8);
+    public static final long DEFAULT_CACHE_MAXIMUM_SIZE = 0;
+    public static final Duration DEFAULT_HEALTH_PROBE_INTERVAL = Duration.ofSeconds(30);
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static final Duration DEFAULT_CIRCUIT_BREAKER_DELAY = Duration.ofSeconds(10);
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 100;
+    public static final Duration DEFAULT_NEGATIVE_CACHE_AGE = Duration.ofMinutes(5);
+    public static final long DEFAULT_NEGATIVE_CACHE_MAXIMUM_SIZE = 10000;
+    public static final Duration DEFAULT_FAILED_ATTEMPTS_WINDOW = Duration.ofMinutes(15);
+    public static final Duration DEFAULT_CACHE_SNAPSHOT_INTERVAL = Duration.ofMinutes(5);
+    public static final int DEFAULT_BATCH_CONCURRENCY = 8;
+    public static final Duration DEFAULT_CONNECTION_IDLE_TIMEOUT = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_HEDGE_MINIMUM_DELAY = Duration.ofMillis(50);
+    public static final double DEFAULT_HEDGE_BUDGET = 0.1;
+    public static final int DEFAULT_OUTLIER_FAILURE_THRESHOLD = 5;
+    public static final Duration DEFAULT_OUTLIER_EJECTION_TIME = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_SLOW_START_WINDOW = Duration.ofSeconds(30);
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final Duration DEFAULT_RETRY_BACKOFF = Duration.ofMillis(100);
+    public static final double DEFAULT_RETRY_BUDGET = 0.1;
+    public static final Duration DEFAULT_REQUEST_DEADLINE = Duration.ofSeconds(5);
+
+    private Duration cacheAge = DEFAULT_CACHE_AGE;
+    private long cacheMaximumSize = DEFAULT_CACHE_MAXIMUM_SIZE;
+    private double refreshAheadFactor = 0;
+    private Duration staleIfErrorWindow = Duration.ZERO;
+    private Duration connectTimeout = Duration.ofMillis(500);
+    private Duration readTimeout = Duration.ofMillis(500);
+    private MetricRegistry metricRegistry;
+    private Duration healthProbeInterval = DEFAULT_HEALTH_PROBE_INTERVAL;
+    private int circuitBreakerFailureThreshold = DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+    private Duration circuitBreakerDelay = DEFAULT_CIRCUIT_BREAKER_DELAY;
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    private Duration negativeCacheAge = DEFAULT_NEGATIVE_CACHE_AGE;
+    private long negativeCacheMaximumSize = DEFAULT_NEGATIVE_CACHE_MAXIMUM_SIZE;
+    private int maxFailedAttempts = 0;
+    private Duration failedAttemptsWindow = DEFAULT_FAILED_ATTEMPTS_WINDOW;
+    private boolean unifiedCache = false;
+    private byte[] cacheSecret;
+    private Path cacheSnapshotFile;
+    private RemoteCache remoteCache;
+    private int batchConcurrency = DEFAULT_BATCH_CONCURRENCY;
+    private int connectionPoolSize = 0;
+    private int maxConnectionsPerRoute = 0;
+    private Duration connectionIdleTimeout = DEFAULT_CONNECTION_IDLE_TIMEOUT;
+    private double hedgePercentile = 0;
+    private long offHeapCacheSize = 0;
+    private Duration hedgeMinimumDelay = DEFAULT_HEDGE_MINIMUM_DELAY;
+    private double hedgeBudget = DEFAULT_HEDGE_BUDGET;
+    private Duration cacheSnapshotInterval = DEFAULT_CACHE_SNAPSHOT_INTERVAL;
+    private int outlierFailureThreshold = DEFAULT_OUTLIER_FAILURE_THRESHOLD;
+    private Duration outlierEjectionTime = DEFAULT_OUTLIER_EJECTION_TIME;
+    private Duration slowStartWindow = DEFAULT_SLOW_START_WINDOW;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private Duration retryBackoff = DEFAULT_RETRY_BACKOFF;
+    private double retryBudget = DEFAULT_RETRY_BUDGET;
+    private Duration requestDeadline = DEFAULT_REQUEST_DEADLINE;
+    private LongSupplier ticker = System::nanoTime;
+
+    public Duration getCacheAge() {
+        return cacheAge;
+    }
+
+    /**
+     * @param cacheAge time to cache responses, zero disables caching
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withCacheAge(Duration cacheAge) {
+        this.cacheAge = Objects.requireNonNull(cacheAge, "cacheAge");
+        return this;
+    }
+
+    public long getCacheMaximumSize() {
+        return cacheMaximumSize;
+    }
+
+    /**
+     * @param cacheMaximumSize maximum number of entries in each cache, 0 for no limit
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withCacheMaximumSize(long cacheMaximumSize) {
+        if (cacheMaximumSize < 0) {
+            throw new IllegalArgumentException("cacheMaximumSize must not be negative");
+        }
+        this.cacheMaximumSize = cacheMaximumSize;
+        return this;
+    }
+
+    public double getRefreshAheadFactor() {
+        return refreshAheadFactor;
+    }
+
+    /**
+     * Once a cached authorize response is older than this fraction of the
+     * cache age, it is refreshed in the background while still being served
+     * @param refreshAheadFactor fraction of the cache age in [0;1), 0 disables refresh ahead
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withRefreshAheadFactor(double refreshAheadFactor) {
+        if (refreshAheadFactor < 0 || refreshAheadFactor >= 1) {
+            throw new IllegalArgumentException("refreshAheadFactor must be in [0;1)");
+        }
+        this.refreshAheadFactor = refreshAheadFactor;
+        return this;
+    }
+
+    public Duration getStaleIfErrorWindow() {
+        return staleIfErrorWindow;
+    }
+
+    /**
+     * Expired authorize responses are kept for this long after the cache age,
+     * and served if the IDP fails to deliver a fresh response
+     * @param staleIfErrorWindow time to retain expired responses, zero disables serving stale responses
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withStaleIfErrorWindow(Duration staleIfErrorWindow) {
+        Objects.requireNonNull(staleIfErrorWindow, "staleIfErrorWindow");
+        if (staleIfErrorWindow.isNegative()) {
+            throw new IllegalArgumentException("staleIfErrorWindow must not be negative");
+        }
+        this.staleIfErrorWindow = staleIfErrorWindow;
+        return this;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public IDPConnectorSettings withConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = Objects.requireNonNull(connectTimeout, "connectTimeout");
+        return this;
+    }
+
+    public Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    public IDPConnectorSettings withReadTimeout(Duration readTimeout) {
+        this.readTimeout = Objects.requireNonNull(readTimeout, "readTimeout");
+        return this;
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    /**
+     * @param metricRegistry registry to register connector metrics with, null disables metrics
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+        return this;
+    }
+
+    public Duration getHealthProbeInterval() {
+        return healthProbeInterval;
+    }
+
+    /**
+     * When the health of the IDP is checked and no request has been made to
+     * the IDP for this long, a probe request is made in the background
+     * @param healthProbeInterval time between probe requests, zero disables probing
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withHealthProbeInterval(Duration healthProbeInterval) {
+        Objects.requireNonNull(healthProbeInterval, "healthProbeInterval");
+        if (healthProbeInterval.isNegative()) {
+            throw new IllegalArgumentException("healthProbeInterval must not be negative");
+        }
+        this.healthProbeInterval = healthProbeInterval;
+        return this;
+    }
+
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * After this many consecutive failed requests the circuit breaker opens,
+     * and requests fail at once without calling the IDP
+     * @param circuitBreakerFailureThreshold number of consecutive failures, 0 disables the circuit breaker
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        if (circuitBreakerFailureThreshold < 0) {
+            throw new IllegalArgumentException("circuitBreakerFailureThreshold must not be negative");
+        }
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+        return this;
+    }
+
+    public Duration getCircuitBreakerDelay() {
+        return circuitBreakerDelay;
+    }
+
+    /**
+     * @param circuitBreakerDelay time an open circuit breaker waits before letting a trial request through
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withCircuitBreakerDelay(Duration circuitBreakerDelay) {
+        this.circuitBreakerDelay = Objects.requireNonNull(circuitBreakerDelay, "circuitBreakerDelay");
+        return this;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * The number of concurrent requests to the IDP is limited adaptively,
+     * starting at and never growing beyond this number, shrinking when the
+     * IDP fails or its latency rises and growing again while it succeeds
+     * @param maxConcurrentRequests upper bound of the limit, 0 disables limiting
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withMaxConcurrentRequests(int maxConcurrentRequests) {
+        if (maxConcurrentRequests < 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests must not be negative");
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    public Duration getNegativeCacheAge() {
+        return negativeCacheAge;
+    }
+
+    /**
+     * Rejected authentications are cached apart from successful ones, so
+     * guessing passwords cannot fill the caches of valid credentials
+     * @param negativeCacheAge time to cache rejections, zero disables caching of rejections
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withNegativeCacheAge(Duration negativeCacheAge) {
+        this.negativeCacheAge = Objects.requireNonNull(negativeCacheAge, "negativeCacheAge");
+        return this;
+    }
+
+    public long getNegativeCacheMaximumSize() {
+        return negativeCacheMaximumSize;
+    }
+
+    /**
+     * @param negativeCacheMaximumSize maximum number of cached rejections, 0 for no limit
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withNegativeCacheMaximumSize(long negativeCacheMaximumSize) {
+        if (negativeCacheMaximumSize < 0) {
+            throw new IllegalArgumentException("negativeCacheMaximumSize must not be negative");
+        }
+        this.negativeCacheMaximumSize = negativeCacheMaximumSize;
+        return this;
+    }
+
+    public int getMaxFailedAttempts() {
+        return maxFailedAttempts;
+    }
+
+    /**
+     * After this many rejected authentications of a user in a group within
+     * the failed attempts window, attempts with passwords not already known
+     * to be valid are rejected without asking the IDP until the window ends
+     * @param maxFailedAttempts number of rejections, 0 disables throttling
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withMaxFailedAttempts(int maxFailedAttempts) {
+        if (maxFailedAttempts < 0) {
+            throw new IllegalArgumentException("maxFailedAttempts must not be negative");
+        }
+        this.maxFailedAttempts = maxFailedAttempts;
+        return this;
+    }
+
+    public Duration getFailedAttemptsWindow() {
+        return failedAttemptsWindow;
+    }
+
+    /**
+     * @param failedAttemptsWindow time from the first rejection of a user until its count is reset
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withFailedAttemptsWindow(Duration failedAttemptsWindow) {
+        this.failedAttemptsWindow = Objects.requireNonNull(failedAttemptsWindow, "failedAttemptsWindow");
+        return this;
+    }
+
+    public boolean isUnifiedCache() {
+        return unifiedCache;
+    }
+
+    /**
+     * In unified mode authenticate calls the authorize endpoint, whose
+     * response also tells whether the user is authenticated, so one request
+     * and one cache entry answer both authenticate and lookupRight for a triple
+     * @param unifiedCache true to enable unified mode
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withUnifiedCache(boolean unifiedCache) {
+        this.unifiedCache = unifiedCache;
+        return this;
+    }
+
+    byte[] getCacheSecret() {
+        return cacheSecret;
+    }
+
+    /**
+     * Cache keys hold a keyed digest of the password, by default keyed with a
+     * random secret. Connectors sharing cached entries, through snapshots
+     * across restarts or through a remote cache across replicas, must derive
+     * their keys from the same configured secret instead.
+     * @param cacheSecret secret of at least 16 bytes, null for a random secret
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withCacheSecret(byte[] cacheSecret) {
+        if (cacheSecret != null) {
+            CacheKey.checkSecret(cacheSecret);
+        }
+        this.cacheSecret = cacheSecret == null ? null : cacheSecret.clone();
+        return this;
+    }
+
+    public Path getCacheSnapshotFile() {
+        return cacheSnapshotFile;
+    }
+
+    /**
+     * Periodically writes an encrypted snapshot of the caches to a file, and
+     * restores entries still within the cache age from it on creation, so a
+     * restarted connector starts with warm caches. Requires a cache secret.
+     * @param cacheSnapshotFile snapshot file, null disables snapshots
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withCacheSnapshot(Path cacheSnapshotFile) {
+        this.cacheSnapshotFile = cacheSnapshotFile;
+        return this;
+    }
+
+    public RemoteCache getRemoteCache() {
+        return remoteCache;
+    }
+
+    /**
+     * Uses a remote cache shared by all replicas as second level behind the
+     * local caches, so each user is only fetched from the IDP once across
+     * replicas. Requires a cache secret shared by the replicas.
+     * @param remoteCache remote cache, null for local caches only
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withRemoteCache(RemoteCache remoteCache) {
+        this.remoteCache = remoteCache;
+        return this;
+    }
+
+    public Duration getCacheSnapshotInterval() {
+        return cacheSnapshotInterval;
+    }
+
+    /**
+     * @param cacheSnapshotInterval time between snapshots
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withCacheSnapshotInterval(Duration cacheSnapshotInterval) {
+        Objects.requireNonNull(cacheSnapshotInterval, "cacheSnapshotInterval");
+        if (cacheSnapshotInterval.isNegative() || cacheSnapshotInterval.isZero()) {
+            throw new IllegalArgumentException("cacheSnapshotInterval must be positive");
+        }
+        this.cacheSnapshotInterval = cacheSnapshotInterval;
+        return this;
+    }
+
+    public int getBatchConcurrency() {
+        return batchConcurrency;
+    }
+
+    /**
+     * @param batchConcurrency maximum number of concurrent lookups made by
+     *                         {@link IDPConnector#lookupRights(java.util.Collection)}, across all batches
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withBatchConcurrency(int batchConcurrency) {
+        if (batchConcurrency < 1) {
+            throw new IllegalArgumentException("batchConcurrency must be positive");
+        }
+        this.batchConcurrency = batchConcurrency;
+        return this;
+    }
+
+    public int getConnectionPoolSize() {
+        return connectionPoolSize;
+    }
+
+    /**
+     * Clients created by {@link IDPConnectorFactory} use a pool of persistent
+     * connections of this size, instead of the default transport of Jersey
+     * @param connectionPoolSize maximum number of pooled connections, 0 for the default transport
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withConnectionPoolSize(int connectionPoolSize) {
+        if (connectionPoolSize < 0) {
+            throw new IllegalArgumentException("connectionPoolSize must not be negative");
+        }
+        this.connectionPoolSize = connectionPoolSize;
+        return this;
+    }
+
+    /**
+     * @return maximum number of pooled connections to each host, defaults to the pool size
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute == 0 ? connectionPoolSize : Math.min(maxConnectionsPerRoute, connectionPoolSize);
+    }
+
+    /**
+     * @param maxConnectionsPerRoute maximum number of pooled connections to each host, 0 for the pool size
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        if (maxConnectionsPerRoute < 0) {
+            throw new IllegalArgumentException("maxConnectionsPerRoute must not be negative");
+        }
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        return this;
+    }
+
+    public Duration getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    /**
+     * @param connectionIdleTimeout time before pooled connections not in use are closed
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withConnectionIdleTimeout(Duration connectionIdleTimeout) {
+        Objects.requireNonNull(connectionIdleTimeout, "connectionIdleTimeout");
+        if (connectionIdleTimeout.isNegative() || connectionIdleTimeout.isZero()) {
+            throw new IllegalArgumentException("connectionIdleTimeout must be positive");
+        }
+        this.connectionIdleTimeout = connectionIdleTimeout;
+        return this;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Requests to the IDP not answered within this percentile of recent
+     * latencies are sent once more, and the first good answer is used
+     * @param hedgePercentile latency percentile in [0;1), 0 disables hedging
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile < 0 || hedgePercentile >= 1) {
+            throw new IllegalArgumentException("hedgePercentile must be in [0;1)");
+        }
+        this.hedgePercentile = hedgePercentile;
+        return this;
+    }
+
+    public Duration getHedgeMinimumDelay() {
+        return hedgeMinimumDelay;
+    }
+
+    /**
+     * @param hedgeMinimumDelay requests are never hedged sooner than this
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withHedgeMinimumDelay(Duration hedgeMinimumDelay) {
+        Objects.requireNonNull(hedgeMinimumDelay, "hedgeMinimumDelay");
+        if (hedgeMinimumDelay.isNegative()) {
+            throw new IllegalArgumentException("hedgeMinimumDelay must not be negative");
+        }
+        this.hedgeMinimumDelay = hedgeMinimumDelay;
+        return this;
+    }
+
+    public double getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    /**
+     * @param hedgeBudget hedged requests allowed per request in (0;1], bounding
+     *                    the extra load from hedging, 1 at most doubles it
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withHedgeBudget(double hedgeBudget) {
+        if (hedgeBudget <= 0 || hedgeBudget > 1) {
+            throw new IllegalArgumentException("hedgeBudget must be in (0;1]");
+        }
+        this.hedgeBudget = hedgeBudget;
+        return this;
+    }
+
+    public long getOffHeapCacheSize() {
+        return offHeapCacheSize;
+    }
+
+    /**
+     * Keeps cached entries in an off-heap store of this size as well, behind
+     * the local caches and in front of any remote cache. Combine with a
+     * small cache maximum size to keep only the most used entries on the heap.
+     * @param offHeapCacheSize maximum number of bytes held off-heap, 0 disables the off-heap store
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withOffHeapCacheSize(long offHeapCacheSize) {
+        if (offHeapCacheSize != 0 && offHeapCacheSize < OffHeapCache.MINIMUM_SIZE) {
+            throw new IllegalArgumentException("offHeapCacheSize must be 0 or at least " + OffHeapCache.MINIMUM_SIZE);
+        }
+        this.offHeapCacheSize = offHeapCacheSize;
+        return this;
+    }
+
+    public int getOutlierFailureThreshold() {
+        return outlierFailureThreshold;
+    }
+
+    /**
+     * With more than one IDP endpoint, an endpoint failing this many
+     * requests in a row gets no requests for a while
+     * @param outlierFailureThreshold number of failures in a row, 0 never ejects endpoints
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withOutlierFailureThreshold(int outlierFailureThreshold) {
+        if (outlierFailureThreshold < 0) {
+            throw new IllegalArgumentException("outlierFailureThreshold must not be negative");
+        }
+        this.outlierFailureThreshold = outlierFailureThreshold;
+        return this;
+    }
+
+    public Duration getOutlierEjectionTime() {
+        return outlierEjectionTime;
+    }
+
+    /**
+     * @param outlierEjectionTime time an endpoint is ejected for, multiplied by
+     *                            the number of times it has been ejected in a row
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withOutlierEjectionTime(Duration outlierEjectionTime) {
+        Objects.requireNonNull(outlierEjectionTime, "outlierEjectionTime");
+        if (outlierEjectionTime.isNegative() || outlierEjectionTime.isZero()) {
+            throw new IllegalArgumentException("outlierEjectionTime must be positive");
+        }
+        this.outlierEjectionTime = outlierEjectionTime;
+        return this;
+    }
+
+    public Duration getSlowStartWindow() {
+        return slowStartWindow;
+    }
+
+    /**
+     * @param slowStartWindow time for an endpoint back from ejection to get its
+     *                        full share of requests, zero gives it at once
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withSlowStartWindow(Duration slowStartWindow) {
+        Objects.requireNonNull(slowStartWindow, "slowStartWindow");
+        if (slowStartWindow.isNegative()) {
+            throw new IllegalArgumentException("slowStartWindow must not be negative");
+        }
+        this.slowStartWindow = slowStartWindow;
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries maximum number of retries of a request getting no
+     *                   response or a server error, 0 disables retries
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        }
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public Duration getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    /**
+     * @param retryBackoff maximum delay before the first retry, doubled for
+     *                     each retry, the actual delay is random up to this
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withRetryBackoff(Duration retryBackoff) {
+        Objects.requireNonNull(retryBackoff, "retryBackoff");
+        if (retryBackoff.isNegative()) {
+            throw new IllegalArgumentException("retryBackoff must not be negative");
+        }
+        this.retryBackoff = retryBackoff;
+        return this;
+    }
+
+    public double getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * @param retryBudget retries allowed per request in (0;1], bounding the
+     *                    extra load from retries, 1 at most doubles it
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withRetryBudget(double retryBudget) {
+        if (retryBudget <= 0 || retryBudget > 1) {
+            throw new IllegalArgumentException("retryBudget must be in (0;1]");
+        }
+        this.retryBudget = retryBudget;
+        return this;
+    }
+
+    public Duration getRequestDeadline() {
+        return requestDeadline;
+    }
+
+    /**
+     * Deadline of calls not given one of their own, covering all attempts
+     * and the waits between them, bounding how long retries can hold a caller
+     * @param requestDeadline time a call may take, zero for no deadline
+     * @return this settings instance
+     */
+    public IDPConnectorSettings withRequestDeadline(Duration requestDeadline) {
+        Objects.requireNonNull(requestDeadline, "requestDeadline");
+        if (requestDeadline.isNegative()) {
+            throw new IllegalArgumentException("requestDeadline must not be negative");
+        }
+        this.requestDeadline = requestDeadline;
+        return this;
+    }
+
+    LongSupplier getTicker() {
+        return ticker;
+    }
+
+    /**
+     * @param ticker nanosecond time source of the caches, for tests to move time forward
+     * @return this settings instance
+     */
+    IDPConnectorSettings withTicker(LongSupplier ticker) {
+        this.ticker = Objects.requireNonNull(ticker, "ticker");
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "IDPConnectorSettings{" +
+                "cacheAge=" + cacheAge +
+                ", cacheMaximumSize=" + cacheMaximumSize +
+                ", refreshAheadFactor=" + refreshAheadFactor +
+                ", staleIfErrorWindow=" + staleIfErrorWindow +
+                ", connectTimeout=" + connectTimeout +
+                ", readTimeout=" + readTimeout +
+                ", healthProbeInterval=" + healthProbeInterval +
+                ", circuitBreakerFailureThreshold=" + circuitBreakerFailureThreshold +
+                ", circuitBreakerDelay=" + circuitBreakerDelay +
+                ", maxConcurrentRequests=" + maxConcurrentRequests +
+                ", negativeCacheAge=" + negativeCacheAge +
+                ", negativeCacheMaximumSize=" + negativeCacheMaximumSize +
+                ", maxFailedAttempts=" + maxFailedAttempts +
+                ", failedAttemptsWindow=" + failedAttemptsWindow +
+                ", unifiedCache=" + unifiedCache +
+                ", cacheSnapshotFile=" + cacheSnapshotFile +
+                ", cacheSnapshotInterval=" + cacheSnapshotInterval +
+                ", remoteCache=" + remoteCache +
+                ", batchConcurrency=" + batchConcurrency +
+                ", connectionPoolSize=" + connectionPoolSize +
+                ", maxConnectionsPerRoute=" + maxConnectionsPerRoute +
+                ", connectionIdleTimeout=" + connectionIdleTimeout +
+                ", hedgePercentile=" + hedgePercentile +
+                ", offHeapCacheSize=" + offHeapCacheSize +
+                ", hedgeMinimumDelay=" + hedgeMinimumDelay +
+                ", hedgeBudget=" + hedgeBudget +
+                ", outlierFailureThreshold=" + outlierFailureThreshold +
+                ", outlierEjectionTime=" + outlierEjectionTime +
+                ", slowStartWindow=" + slowStartWindow +
+                ", maxRetries=" + maxRetries +
+                ", retryBackoff=" + retryBackoff +
+                ", retryBudget=" + retryBudget +
+                ", requestDeadline=" + requestDeadline +
+                '}';
+    }
+}
@@ -0,0 +1,12 @@
+package dk.dbc.idp.connector;
+
+/**
+ * Thrown without calling the IDP service when a user in a group has been
+ * rejected too many times lately, so a password not already known to be
+ * valid is neither accepted nor rejected until the throttling window ends
+ */
+public class IDPConnectorThrottledException extends IDPConnectorException {
+    public IDPConnectorThrottledException(String msg) {
+        super(msg);
+    }
+}
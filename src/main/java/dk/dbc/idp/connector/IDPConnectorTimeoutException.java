@@ -0,0 +1,11 @@
+package dk.dbc.idp.connector;
+
+/**
+ * Thrown when the IDP service has not answered within the deadline of a call,
+ * all attempts included
+ */
+public class IDPConnectorTimeoutException extends IDPConnectorException {
+    public IDPConnectorTimeoutException(String msg) {
+        super(msg);
+    }
+}
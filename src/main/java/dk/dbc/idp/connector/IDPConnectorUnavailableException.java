@@ -0,0 +1,12 @@
+package dk.dbc.idp.connector;
+
+/**
+ * Thrown without calling the IDP service when the connector considers it
+ * unavailable, either because the circuit breaker is open or because too
+ * many requests are already waiting for it
+ */
+public class IDPConnectorUnavailableException extends IDPConnectorException {
+    public IDPConnectorUnavailableException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,183 @@
+package dk.dbc.idp.connector;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Passive health monitor of the IDP service
+ * <p>
+ * Records outcome and latency of the requests made by a connector in a ring
+ * buffer of recent samples. When no request has been observed for a probe
+ * interval, taking a snapshot starts a probe request, at most one per probe
+ * interval. The prober must not block, so taking a snapshot never waits for
+ * the IDP, no matter how often it is done.
+ * </p>
+ * <p>
+ * The IDP is considered unreachable when at least {@link #ERROR_RATE_THRESHOLD}
+ * of at least {@link #MINIMUM_SAMPLES} requests within the window failed, and
+ * the most recent one did too, so a single failure does not make it unreachable,
+ * while a single success after an outage makes it reachable again.
+ * </p>
+ */
+class IDPHealthMonitor {
+    static final int SAMPLES = 128;
+    static final Duration WINDOW = Duration.ofMinutes(5);
+    static final int MINIMUM_SAMPLES = 5;
+    static final double ERROR_RATE_THRESHOLD = 0.5;
+
+    enum State {
+        UNKNOWN, REACHABLE, UNREACHABLE
+    }
+
+    private final AtomicReferenceArray<Sample> samples = new AtomicReferenceArray<>(SAMPLES);
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicLong lastProbeAt;
+    private final Runnable prober;
+    private final long probeIntervalNanos;
+    private final LongSupplier ticker;
+    private volatile Sample last;
+
+    /**
+     * @param probeInterval time without observed requests before probing, zero disables probing
+     * @param prober starts a probe request in the background
+     */
+    IDPHealthMonitor(Duration probeInterval, Runnable prober) {
+        this(probeInterval, prober, System::nanoTime);
+    }
+
+    IDPHealthMonitor(Duration probeInterval, Runnable prober, LongSupplier ticker) {
+        this.probeIntervalNanos = probeInterval.toNanos();
+        this.prober = prober;
+        this.ticker = ticker;
+        this.lastProbeAt = new AtomicLong(ticker.getAsLong() - probeIntervalNanos);
+    }
+
+    /**
+     * Records the outcome of a request
+     * @param latencyNanos time taken by the request
+     * @param success false if the IDP gave no response or a server error
+     */
+    void record(long latencyNanos, boolean success) {
+        final Sample sample = new Sample(ticker.getAsLong(), latencyNanos, success);
+        samples.set((int) (cursor.getAndIncrement() % SAMPLES), sample);
+        last = sample;
+    }
+
+    /**
+     * @return health of the IDP as observed within the last {@link #WINDOW}
+     */
+    Snapshot snapshot() {
+        final long now = ticker.getAsLong();
+        probeIfIdle(now);
+
+        final long[] latencies = new long[SAMPLES];
+        int count = 0;
+        int errors = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            final Sample sample = samples.get(i);
+            if (sample != null && now - sample.at < WINDOW.toNanos()) {
+                latencies[count++] = sample.latencyNanos;
+                if (!sample.success) {
+                    errors++;
+                }
+            }
+        }
+        Arrays.sort(latencies, 0, count);
+
+        final Sample last = this.last;
+        final State state;
+        if (count == 0) {
+            state = State.UNKNOWN;
+        } else if (last != null && !last.success
+                && count >= MINIMUM_SAMPLES && errors >= ERROR_RATE_THRESHOLD * count) {
+            state = State.UNREACHABLE;
+        } else {
+            state = State.REACHABLE;
+        }
+        return new Snapshot(state, count, errors,
+                percentile(latencies, count, 0.5),
+                percentile(latencies, count, 0.95),
+                percentile(latencies, count, 0.99));
+    }
+
+    /**
+     * @param p percentile in (0;1]
+     * @param minimumSamples minimum number of successful requests within the window
+     * @return latency percentile of successful requests within the last
+     * {@link #WINDOW}, or null if there are too few of them
+     */
+    Duration latencyPercentile(double p, int minimumSamples) {
+        final long now = ticker.getAsLong();
+        final long[] latencies = new long[SAMPLES];
+        int count = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            final Sample sample = samples.get(i);
+            if (sample != null && sample.success && now - sample.at < WINDOW.toNanos()) {
+                latencies[count++] = sample.latencyNanos;
+            }
+        }
+        if (count == 0 || count < minimumSamples) {
+            return null;
+        }
+        Arrays.sort(latencies, 0, count);
+        return percentile(latencies, count, p);
+    }
+
+    private void probeIfIdle(long now) {
+        if (probeIntervalNanos <= 0) {
+            return;
+        }
+        final Sample last = this.last;
+        if (last != null && now - last.at < probeIntervalNanos) {
+            return;
+        }
+        final long probedAt = lastProbeAt.get();
+        if (now - probedAt >= probeIntervalNanos && lastProbeAt.compareAndSet(probedAt, now)) {
+            prober.run();
+        }
+    }
+
+    private static Duration percentile(long[] sorted, int count, double p) {
+        if (count == 0) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos(sorted[Math.min(count - 1, (int) Math.ceil(p * count) - 1)]);
+    }
+
+    private static final class Sample {
+        final long at;
+        final long latencyNanos;
+        final boolean success;
+
+        Sample(long at, long latencyNanos, boolean success) {
+            this.at = at;
+            this.latencyNanos = latencyNanos;
+            this.success = success;
+        }
+    }
+
+    static final class Snapshot {
+        final State state;
+        final int requests;
+        final int errors;
+        final Duration p50;
+        final Duration p95;
+        final Duration p99;
+
+        Snapshot(State state, int requests, int errors, Duration p50, Duration p95, Duration p99) {
+            this.state = state;
+            this.requests = requests;
+            this.errors = errors;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+        }
+
+        double errorRate() {
+            return requests == 0 ? 0 : (double) errors / requests;
+        }
+    }
+}
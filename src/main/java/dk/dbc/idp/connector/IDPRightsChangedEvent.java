@@ -0,0 +1,72 @@
+package dk.dbc.idp.connector;
+
+import java.util.Objects;
+
+/**
+ * Event telling that rights have changed in the IDP
+ * <p>
+ * Fire it on the CDI event bus, e.g. from a consumer of a change feed, to
+ * have the CDI managed connector drop the cached entries it concerns:
+ * </p>
+ * <pre>
+ *    {@literal @}Inject
+ *    Event&lt;IDPRightsChangedEvent&gt; rightsChanged;
+ *    ...
+ *    rightsChanged.fire(IDPRightsChangedEvent.forUser(user, agencyId));
+ * </pre>
+ */
+public final class IDPRightsChangedEvent {
+    private final String user;
+    private final String group;
+
+    private IDPRightsChangedEvent(String user, String group) {
+        this.user = user;
+        this.group = group;
+    }
+
+    /**
+     * @param user user whose rights or password changed
+     * @param group agency of the user
+     * @return event concerning a single user
+     */
+    public static IDPRightsChangedEvent forUser(String user, String group) {
+        return new IDPRightsChangedEvent(Objects.requireNonNull(user, "user"), Objects.requireNonNull(group, "group"));
+    }
+
+    /**
+     * @param group agency whose rights changed
+     * @return event concerning all users of an agency
+     */
+    public static IDPRightsChangedEvent forAgency(String group) {
+        return new IDPRightsChangedEvent(null, Objects.requireNonNull(group, "group"));
+    }
+
+    /**
+     * @return event concerning everybody, e.g. after changes to a product
+     */
+    public static IDPRightsChangedEvent forAll() {
+        return new IDPRightsChangedEvent(null, null);
+    }
+
+    /**
+     * @return the user, or null if the event concerns more than one user
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * @return the agency, or null if the event concerns all agencies
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    @Override
+    public String toString() {
+        return "IDPRightsChangedEvent{" +
+                "user='" + user + '\'' +
+                ", group='" + group + '\'' +
+                '}';
+    }
+}
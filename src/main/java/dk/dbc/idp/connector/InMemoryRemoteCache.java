@@ -0,0 +1,69 @@
+package dk.dbc.idp.connector;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-process {@link RemoteCache}
+ * <p>
+ * Reference implementation of the remote cache contract, and a stand-in for
+ * a real distributed cache when testing: connectors sharing an instance
+ * behave like replicas sharing a distributed cache, and invalidations are
+ * delivered synchronously to every subscribed connector.
+ * </p>
+ */
+public class InMemoryRemoteCache implements RemoteCache {
+    private final ConcurrentHashMap<String, Value> values = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public byte[] get(String key) {
+        final Value value = values.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (System.nanoTime() - value.expiresAt >= 0) {
+            values.remove(key, value);
+            return null;
+        }
+        return value.bytes.clone();
+    }
+
+    @Override
+    public void put(String key, byte[] value, Duration timeToLive) {
+        values.put(key, new Value(value.clone(), System.nanoTime() + timeToLive.toNanos()));
+    }
+
+    @Override
+    public void invalidate(String key) {
+        values.remove(key);
+        for (Consumer<String> listener : listeners) {
+            listener.accept(key);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return number of values held, including expired values not yet removed
+     */
+    public int size() {
+        return values.size();
+    }
+
+    private static final class Value {
+        final byte[] bytes;
+        final long expiresAt;
+
+        Value(byte[] bytes, long expiresAt) {
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
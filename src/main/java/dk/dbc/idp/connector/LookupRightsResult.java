@@ -0,0 +1,49 @@
+package dk.dbc.idp.connector;
+
+import java.util.Map;
+
+/**
+ * Result of {@link IDPConnector#lookupRights(java.util.Collection)}
+ * <p>
+ * Every distinct triple of the lookup is either in the rights or in the
+ * failures, so a failing triple does not fail the others.
+ * </p>
+ */
+public final class LookupRightsResult {
+    private final Map<NetpunktTripleDTO, IDPConnector.RightSet> rights;
+    private final Map<NetpunktTripleDTO, Exception> failures;
+
+    LookupRightsResult(Map<NetpunktTripleDTO, IDPConnector.RightSet> rights,
+                       Map<NetpunktTripleDTO, Exception> failures) {
+        this.rights = Map.copyOf(rights);
+        this.failures = Map.copyOf(failures);
+    }
+
+    /**
+     * @return rights of each triple looked up successfully, empty rights if
+     * the triple was not authenticated
+     */
+    public Map<NetpunktTripleDTO, IDPConnector.RightSet> getRights() {
+        return rights;
+    }
+
+    /**
+     * @return exception of each triple whose lookup failed, with the types
+     * thrown by {@link IDPConnector#lookupRight(String, String, String)}
+     */
+    public Map<NetpunktTripleDTO, Exception> getFailures() {
+        return failures;
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "LookupRightsResult{" +
+                "rights=" + rights.size() +
+                ", failures=" + failures +
+                '}';
+    }
+}
@@ -0,0 +1,452 @@
+package dk.dbc.idp.connector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Off-heap store of cached values, used as second level behind the local caches
+ * <p>
+ * Values are kept in direct byte buffers, so millions of entries cost the
+ * garbage collector next to nothing: the heap only holds the slabs and the
+ * index, a pair of long arrays, whatever the number of entries.
+ * </p>
+ * <p>
+ * The store is split into {@link #SEGMENTS} segments, each guarded by its own
+ * lock. A segment writes entries one after another into a ring of slabs. When
+ * the ring is full, the oldest slab is emptied and reused, dropping the entries
+ * still in it, so the store never holds more than its byte limit. Entries are
+ * found through an open addressing hash table with linear probing, mapping the
+ * hash of a key to the slab and offset of its entry. Entries expire by their
+ * own time to live, checked on lookup, and removed entries leave dead space
+ * until their slab is reused.
+ * </p>
+ * <p>
+ * Optionally the store sits in front of a remote cache, which is then asked
+ * on misses and kept up to date.
+ * </p>
+ * <pre>
+ *     entry := length(int) hash(long) expiresAt(epoch millis) keyLength(unsigned short) key valueLength(int) value
+ * </pre>
+ */
+final class OffHeapCache implements RemoteCache {
+    static final int SEGMENTS = 16;
+    static final int MAXIMUM_SLAB_SIZE = 16 << 20;
+    static final long MINIMUM_SIZE = SEGMENTS * 2 * 4096;
+
+    private static final int HEADER_LENGTH = 4 + 8 + 8 + 2;
+    private static final int INITIAL_SLOTS = 1024;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final RemoteCache remoteCache;
+    private final LongSupplier clock;
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param maximumBytes maximum number of bytes of entries held
+     * @param remoteCache remote cache behind this store, or null for none
+     */
+    OffHeapCache(long maximumBytes, RemoteCache remoteCache) {
+        this(maximumBytes, remoteCache, System::currentTimeMillis);
+    }
+
+    OffHeapCache(long maximumBytes, RemoteCache remoteCache, LongSupplier clock) {
+        if (maximumBytes < MINIMUM_SIZE) {
+            throw new IllegalArgumentException("maximumBytes must be at least " + MINIMUM_SIZE);
+        }
+        final long segmentBytes = maximumBytes / SEGMENTS;
+        final int slabs = (int) Math.max(2, (segmentBytes + MAXIMUM_SLAB_SIZE - 1) / MAXIMUM_SLAB_SIZE);
+        final int slabSize = (int) Math.min(MAXIMUM_SLAB_SIZE, segmentBytes / slabs);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(slabs, slabSize);
+        }
+        this.remoteCache = remoteCache;
+        this.clock = clock;
+        if (remoteCache != null) {
+            remoteCache.subscribe(key -> {
+                final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                final long hash = hash(keyBytes);
+                segmentFor(hash).remove(keyBytes, hash);
+                notifyListeners(key);
+            });
+        }
+    }
+
+    @Override
+    public byte[] get(String key) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final long hash = hash(keyBytes);
+        final byte[] value = segmentFor(hash).get(keyBytes, hash, clock.getAsLong());
+        if (value == null && remoteCache != null) {
+            return remoteCache.get(key);
+        }
+        return value;
+    }
+
+    @Override
+    public void put(String key, byte[] value, Duration timeToLive) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final long hash = hash(keyBytes);
+        segmentFor(hash).put(keyBytes, hash, value, clock.getAsLong() + timeToLive.toMillis());
+        if (remoteCache != null) {
+            remoteCache.put(key, value, timeToLive);
+        }
+    }
+
+    @Override
+    public void invalidate(String key) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final long hash = hash(keyBytes);
+        segmentFor(hash).remove(keyBytes, hash);
+        if (remoteCache != null) {
+            // Subscribers are notified through the remote cache
+            remoteCache.invalidate(key);
+        } else {
+            notifyListeners(key);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Invalidates every entry whose key matches, by scanning the whole store
+     * @param marker only keys containing this are decoded and tested, so the
+     *               scan allocates nothing for the others
+     * @param filter condition on keys to invalidate
+     * @return number of keys invalidated
+     */
+    int invalidateIf(String marker, Predicate<String> filter) {
+        final byte[] markerBytes = marker.getBytes(StandardCharsets.UTF_8);
+        int invalidated = 0;
+        for (Segment segment : segments) {
+            for (String key : segment.keys(markerBytes, filter)) {
+                invalidate(key);
+                invalidated++;
+            }
+        }
+        return invalidated;
+    }
+
+    /**
+     * Removes all entries of this store, but not of the remote cache behind it
+     */
+    void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return number of entries held, including expired entries not yet removed
+     */
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private void notifyListeners(String key) {
+        for (Consumer<String> listener : listeners) {
+            listener.accept(key);
+        }
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 60)];
+    }
+
+    /* FNV-1a followed by the finalizer of MurmurHash3, so both the top bits
+     * choosing the segment and the low bits choosing the slot are well mixed.
+     * Zero marks empty slots, so it is never returned.
+     */
+    static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /* A location is the generation of the slab, the slab and the offset of
+     * the entry within the slab. Generations are bumped every time a slab is
+     * reused, so a location never refers to an entry overwritten since.
+     */
+    private static final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ByteBuffer[] slabs;
+        private final int[] generations;
+        private final int[] ends;
+        private final int slabSize;
+        private int currentSlab;
+        private long[] table = new long[2 * INITIAL_SLOTS];
+        private int mask = INITIAL_SLOTS - 1;
+        private int count;
+
+        Segment(int slabs, int slabSize) {
+            this.slabs = new ByteBuffer[slabs];
+            this.generations = new int[slabs];
+            this.ends = new int[slabs];
+            this.slabSize = slabSize;
+            for (int i = 0; i < slabs; i++) {
+                this.slabs[i] = ByteBuffer.allocateDirect(slabSize);
+            }
+        }
+
+        byte[] get(byte[] key, long hash, long now) {
+            lock.lock();
+            try {
+                final int slot = find(key, hash);
+                if (slot < 0) {
+                    return null;
+                }
+                final long location = table[2 * slot + 1];
+                final ByteBuffer slab = slabs[slab(location)];
+                final int offset = offset(location);
+                if (slab.getLong(offset + 12) <= now) {
+                    delete(slot);
+                    return null;
+                }
+                final int valueOffset = offset + HEADER_LENGTH + key.length;
+                final byte[] value = new byte[slab.getInt(valueOffset)];
+                slab.get(valueOffset + 4, value);
+                return value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(byte[] key, long hash, byte[] value, long expiresAt) {
+            final long length = (long) HEADER_LENGTH + key.length + 4 + value.length;
+            if (key.length > 0xFFFF || length > slabSize) {
+                return;
+            }
+            lock.lock();
+            try {
+                final int existing = find(key, hash);
+                if (existing >= 0) {
+                    delete(existing);
+                }
+                if (ends[currentSlab] + length > slabSize) {
+                    currentSlab = (currentSlab + 1) % slabs.length;
+                    recycle(currentSlab);
+                }
+                final ByteBuffer slab = slabs[currentSlab];
+                final int offset = ends[currentSlab];
+                slab.putInt(offset, (int) length)
+                        .putLong(offset + 4, hash)
+                        .putLong(offset + 12, expiresAt)
+                        .putShort(offset + 20, (short) key.length)
+                        .put(offset + HEADER_LENGTH, key)
+                        .putInt(offset + HEADER_LENGTH + key.length, value.length)
+                        .put(offset + HEADER_LENGTH + key.length + 4, value);
+                ends[currentSlab] = offset + (int) length;
+                insert(hash, location(generations[currentSlab], currentSlab, offset));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(byte[] key, long hash) {
+            lock.lock();
+            try {
+                final int slot = find(key, hash);
+                if (slot >= 0) {
+                    delete(slot);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<String> keys(byte[] marker, Predicate<String> filter) {
+            final List<String> keys = new ArrayList<>();
+            lock.lock();
+            try {
+                for (int slot = 0; slot <= mask; slot++) {
+                    if (table[2 * slot] != 0 && keyContains(table[2 * slot + 1], marker)) {
+                        final String key = readKey(table[2 * slot + 1]);
+                        if (filter.test(key)) {
+                            keys.add(key);
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            return keys;
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                Arrays.fill(table, 0);
+                count = 0;
+                for (int i = 0; i < slabs.length; i++) {
+                    generations[i] = (generations[i] + 1) & 0xFFFF;
+                    ends[i] = 0;
+                }
+                currentSlab = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /* Drops the entries still in a slab from the table before the slab
+         * is overwritten. Entries are laid out one after another, so they are
+         * found by walking the slab.
+         */
+        private void recycle(int slabIndex) {
+            final ByteBuffer slab = slabs[slabIndex];
+            for (int offset = 0; offset < ends[slabIndex]; offset += slab.getInt(offset)) {
+                final long location = location(generations[slabIndex], slabIndex, offset);
+                final long hash = slab.getLong(offset + 4);
+                for (int slot = home(hash); table[2 * slot] != 0; slot = (slot + 1) & mask) {
+                    if (table[2 * slot + 1] == location) {
+                        delete(slot);
+                        break;
+                    }
+                }
+            }
+            generations[slabIndex] = (generations[slabIndex] + 1) & 0xFFFF;
+            ends[slabIndex] = 0;
+        }
+
+        private int find(byte[] key, long hash) {
+            for (int slot = home(hash); table[2 * slot] != 0; slot = (slot + 1) & mask) {
+                if (table[2 * slot] == hash && keyEquals(table[2 * slot + 1], key)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(long hash, long location) {
+            if (2 * (count + 1) > mask + 1) {
+                resize();
+            }
+            int slot = home(hash);
+            while (table[2 * slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[2 * slot] = hash;
+            table[2 * slot + 1] = location;
+            count++;
+        }
+
+        /* Backward shift deletion: entries after the deleted slot are moved
+         * back unless already at or past their home slot, so no tombstones
+         * are needed and probe sequences stay unbroken.
+         */
+        private void delete(int slot) {
+            int hole = slot;
+            for (int next = (hole + 1) & mask; table[2 * next] != 0; next = (next + 1) & mask) {
+                final int home = home(table[2 * next]);
+                final boolean movable = hole <= next
+                        ? home <= hole || home > next
+                        : home <= hole && home > next;
+                if (movable) {
+                    table[2 * hole] = table[2 * next];
+                    table[2 * hole + 1] = table[2 * next + 1];
+                    hole = next;
+                }
+            }
+            table[2 * hole] = 0;
+            table[2 * hole + 1] = 0;
+            count--;
+        }
+
+        private void resize() {
+            final long[] old = table;
+            table = new long[old.length * 2];
+            mask = table.length / 2 - 1;
+            count = 0;
+            for (int i = 0; i < old.length; i += 2) {
+                if (old[i] != 0) {
+                    insert(old[i], old[i + 1]);
+                }
+            }
+        }
+
+        private int home(long hash) {
+            return (int) hash & mask;
+        }
+
+        private boolean keyEquals(long location, byte[] key) {
+            final ByteBuffer slab = slabs[slab(location)];
+            final int offset = offset(location);
+            if ((slab.getShort(offset + 20) & 0xFFFF) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(offset + HEADER_LENGTH + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean keyContains(long location, byte[] marker) {
+            final ByteBuffer slab = slabs[slab(location)];
+            final int keyOffset = offset(location) + HEADER_LENGTH;
+            final int keyLength = slab.getShort(offset(location) + 20) & 0xFFFF;
+            for (int start = 0; start + marker.length <= keyLength; start++) {
+                int i = 0;
+                while (i < marker.length && slab.get(keyOffset + start + i) == marker[i]) {
+                    i++;
+                }
+                if (i == marker.length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String readKey(long location) {
+            final ByteBuffer slab = slabs[slab(location)];
+            final int offset = offset(location);
+            final byte[] key = new byte[slab.getShort(offset + 20) & 0xFFFF];
+            slab.get(offset + HEADER_LENGTH, key);
+            return new String(key, StandardCharsets.UTF_8);
+        }
+
+        private static long location(int generation, int slab, int offset) {
+            return (long) generation << 48 | (long) slab << 32 | offset;
+        }
+
+        private static int slab(long location) {
+            return (int) (location >>> 32) & 0xFFFF;
+        }
+
+        private static int offset(long location) {
+            return (int) location;
+        }
+    }
+}
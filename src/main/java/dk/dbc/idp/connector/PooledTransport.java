@@ -0,0 +1,56 @@
+package dk.dbc.idp.connector;
+
+import jakarta.ws.rs.client.Client;
+import jakarta.ws.rs.client.ClientBuilder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.glassfish.jersey.apache5.connector.Apache5ClientProperties;
+import org.glassfish.jersey.apache5.connector.Apache5ConnectorProvider;
+import org.glassfish.jersey.apache5.connector.Apache5HttpClientBuilderConfigurator;
+import org.glassfish.jersey.client.ClientConfig;
+import org.glassfish.jersey.jackson.JacksonFeature;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jersey client backed by a pool of persistent Apache HttpClient connections
+ * <p>
+ * Requests reuse open connections instead of paying for a TCP handshake
+ * each time. Connections idle for longer than the idle timeout, or found
+ * stale when taken from the pool, are closed by the client, and the pool is
+ * closed with the client.
+ * </p>
+ */
+final class PooledTransport {
+    private static final TimeValue VALIDATE_AFTER_INACTIVITY = TimeValue.ofSeconds(2);
+
+    private PooledTransport() {}
+
+    static Client newClient(IDPConnectorSettings settings) {
+        final PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(settings.getConnectionPoolSize())
+                .setMaxConnPerRoute(settings.getMaxConnectionsPerRoute())
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(settings.getConnectTimeout().toMillis()))
+                        .setSocketTimeout(Timeout.ofMilliseconds(settings.getReadTimeout().toMillis()))
+                        .setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY)
+                        .build())
+                .build();
+        final TimeValue idleTimeout = TimeValue.ofMilliseconds(settings.getConnectionIdleTimeout().toMillis());
+        final ClientConfig config = new ClientConfig()
+                .connectorProvider(new Apache5ConnectorProvider())
+                .property(Apache5ClientProperties.CONNECTION_MANAGER, connectionManager)
+                .register((Apache5HttpClientBuilderConfigurator) builder -> builder
+                        .evictExpiredConnections()
+                        .evictIdleConnections(idleTimeout));
+        return ClientBuilder.newBuilder()
+                .withConfig(config)
+                .connectTimeout(settings.getConnectTimeout().toMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(settings.getReadTimeout().toMillis(), TimeUnit.MILLISECONDS).build()
+                .register(new JacksonConfig())
+                .register(new JacksonFeature());
+    }
+}
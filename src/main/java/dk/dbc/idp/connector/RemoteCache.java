@@ -0,0 +1,56 @@
+package dk.dbc.idp.connector;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * Remote cache shared by the connectors of all replicas
+ * <p>
+ * Implement this on top of a distributed cache or key-value store, such as
+ * Redis, Hazelcast or Infinispan, and hand it to
+ * {@link IDPConnectorSettings#withRemoteCache(RemoteCache)}, or provide it as
+ * a CDI bean. Connectors consult the remote cache when their local caches
+ * miss, and only call the IDP when the remote cache misses too.
+ * </p>
+ * <p>
+ * Keys are strings made of user, group and a keyed password digest, never the
+ * password. Values are opaque bytes holding the cached response. Methods may be
+ * called concurrently and should fail fast, since connectors wait for them;
+ * runtime exceptions are logged and treated as misses.
+ * </p>
+ * <p>
+ * When the IDP rejects credentials cached as valid, the connector invalidates
+ * the key, which must remove the value and tell every subscribed connector,
+ * including ones on other replicas, so they drop their local copies as well.
+ * </p>
+ * <p>
+ * {@link InMemoryRemoteCache} is an in-process reference implementation.
+ * </p>
+ */
+public interface RemoteCache {
+    /**
+     * @param key key
+     * @return value stored for key, or null if there is none
+     */
+    byte[] get(String key);
+
+    /**
+     * Stores value for key, replacing any previous value
+     * @param key key
+     * @param value value
+     * @param timeToLive time after which the value must no longer be returned
+     */
+    void put(String key, byte[] value, Duration timeToLive);
+
+    /**
+     * Removes the value of key and notifies all subscribers, on all replicas,
+     * that the key is invalidated
+     * @param key key
+     */
+    void invalidate(String key);
+
+    /**
+     * @param listener called with keys invalidated by any replica
+     */
+    void subscribe(Consumer<String> listener);
+}
@@ -0,0 +1,178 @@
+package dk.dbc.idp.connector;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Hedges slow requests to the IDP
+ * <p>
+ * A request not answered within a percentile of recent latencies is sent
+ * once more, the first good answer of the two is used and the other request
+ * is abandoned. Authenticate and authorize requests do not change anything,
+ * so sending them twice is harmless.
+ * </p>
+ * <p>
+ * Hedges are paid for from a budget, which every request adds a fraction of
+ * a hedge to, so hedging adds at most that fraction to the load on the IDP,
+ * plus a small reserve of {@link #RESERVE} hedges. When the IDP slows down
+ * as a whole, the budget is quickly spent and requests are no longer hedged.
+ * </p>
+ */
+class RequestHedger {
+    static final int RESERVE = 10;
+    static final int MINIMUM_SAMPLES = 16;
+
+    private static final long HEDGE_COST = 1000;
+    private static final long DELAY_REFRESH_NANOS = Duration.ofSeconds(1).toNanos();
+
+    private final ExecutorService executor;
+    private final IDPHealthMonitor healthMonitor;
+    private final double percentile;
+    private final long minimumDelayNanos;
+    private final long deposit;
+    private final AtomicLong balance = new AtomicLong(RESERVE * HEDGE_COST);
+    private final LongSupplier ticker;
+    private volatile long delayNanos = -1;
+    private volatile long delayComputedAt;
+
+    /**
+     * @param executor executor running the requests
+     * @param healthMonitor source of recent latencies
+     * @param percentile latency percentile in (0;1) after which a request is hedged
+     * @param minimumDelay requests are never hedged sooner than this
+     * @param budget hedges allowed per request, in (0;1]
+     */
+    RequestHedger(ExecutorService executor, IDPHealthMonitor healthMonitor,
+                  double percentile, Duration minimumDelay, double budget) {
+        this(executor, healthMonitor, percentile, minimumDelay, budget, System::nanoTime);
+    }
+
+    RequestHedger(ExecutorService executor, IDPHealthMonitor healthMonitor,
+                  double percentile, Duration minimumDelay, double budget, LongSupplier ticker) {
+        this.executor = executor;
+        this.healthMonitor = healthMonitor;
+        this.percentile = percentile;
+        this.minimumDelayNanos = minimumDelay.toNanos();
+        this.deposit = Math.round(budget * HEDGE_COST);
+        this.ticker = ticker;
+        this.delayComputedAt = ticker.getAsLong() - DELAY_REFRESH_NANOS;
+    }
+
+    /**
+     * A single request
+     * @param <T> type of answer
+     */
+    @FunctionalInterface
+    interface Attempt<T> {
+        /**
+         * @param abandoned set before the request is interrupted because the
+         *                  other request answered first, the outcome of an
+         *                  abandoned request says nothing about the IDP
+         * @return the answer
+         * @throws IDPConnectorException on failure
+         */
+        T run(AtomicBoolean abandoned) throws IDPConnectorException;
+    }
+
+    <T> T execute(Attempt<T> attempt, IDPConnectorMetrics.RequestMetrics requestMetrics)
+            throws IDPConnectorException {
+        balance.accumulateAndGet(deposit, (current, d) -> Math.min(current + d, RESERVE * HEDGE_COST));
+        final long delay = delayNanos();
+        if (delay < 0) {
+            return attempt.run(new AtomicBoolean());
+        }
+
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        final ExecutorCompletionService<T> race = new ExecutorCompletionService<>(executor);
+        final Future<T> primary = race.submit(() -> attempt.run(abandoned));
+        Future<T> hedge = null;
+        try {
+            Future<T> first = race.poll(delay, TimeUnit.NANOSECONDS);
+            if (first != null) {
+                return answer(first);
+            }
+            if (!withdraw()) {
+                requestMetrics.hedgeSkipped();
+                return answer(race.take());
+            }
+            requestMetrics.hedged();
+            hedge = race.submit(() -> attempt.run(abandoned));
+            first = race.take();
+            T value;
+            Future<T> winner = first;
+            try {
+                value = answer(first);
+            } catch (IDPConnectorException | RuntimeException e) {
+                // The other request may still succeed
+                winner = race.take();
+                value = answer(winner);
+            }
+            if (winner == hedge) {
+                requestMetrics.hedgeWon();
+            }
+            return value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IDPConnectorException("Interrupted while waiting for the IDP");
+        } finally {
+            abandoned.set(true);
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    private boolean withdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < HEDGE_COST) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - HEDGE_COST));
+        return true;
+    }
+
+    /* The percentile is computed at most once a second, as it takes sorting
+     * the recent latencies. Until enough requests have been seen it is
+     * unknown, and requests are not hedged.
+     */
+    private long delayNanos() {
+        final long now = ticker.getAsLong();
+        if (now - delayComputedAt >= DELAY_REFRESH_NANOS) {
+            final Duration latency = healthMonitor.latencyPercentile(percentile, MINIMUM_SAMPLES);
+            delayNanos = latency == null ? -1 : Math.max(minimumDelayNanos, latency.toNanos());
+            delayComputedAt = now;
+        }
+        return delayNanos;
+    }
+
+    private static <T> T answer(Future<T> future) throws IDPConnectorException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IDPConnectorException) {
+                throw (IDPConnectorException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IDPConnectorException("Interrupted while waiting for the IDP");
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package dk.dbc.idp.connector;
+
+import jakarta.ws.rs.ProcessingException;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries requests to the IDP failing for want of an answer
+ * <p>
+ * Requests getting no response or a server error are retried after an
+ * exponential backoff with full jitter, a random delay up to the base
+ * backoff doubled for each retry, so retries from many callers spread out
+ * instead of arriving together. A retry whose delay would pass the deadline
+ * of the call is not made, nor is one whose deadline passed while waiting.
+ * </p>
+ * <p>
+ * Like hedges, retries are paid for from a budget which every request adds a
+ * fraction of a retry to, plus a small reserve of {@link #RESERVE} retries.
+ * When the IDP browns out the budget is spent at once, and failures are no
+ * longer retried, so retries never multiply the load on a struggling IDP.
+ * </p>
+ */
+class RequestRetrier {
+    static final int RESERVE = 10;
+
+    private static final long RETRY_COST = 1000;
+
+    private final int maxRetries;
+    private final long backoffNanos;
+    private final long deposit;
+    private final AtomicLong balance = new AtomicLong(RESERVE * RETRY_COST);
+
+    /**
+     * @param maxRetries maximum number of retries of a request, 0 disables retries
+     * @param backoff delay before the first retry, doubled for each retry and jittered
+     * @param budget retries allowed per request, in (0;1]
+     */
+    RequestRetrier(int maxRetries, Duration backoff, double budget) {
+        this.maxRetries = maxRetries;
+        this.backoffNanos = backoff.toNanos();
+        this.deposit = Math.round(budget * RETRY_COST);
+    }
+
+    /**
+     * A single request
+     * @param <T> type of answer
+     */
+    @FunctionalInterface
+    interface Attempt<T> {
+        T run() throws IDPConnectorException;
+    }
+
+    <T> T execute(Attempt<T> attempt, Deadline deadline, IDPConnectorMetrics.RequestMetrics requestMetrics)
+            throws IDPConnectorException {
+        balance.accumulateAndGet(deposit, (current, d) -> Math.min(current + d, RESERVE * RETRY_COST));
+        for (int retry = 0; ; retry++) {
+            try {
+                return attempt.run();
+            } catch (IDPConnectorException | ProcessingException e) {
+                if (retry >= maxRetries || !isRetriable(e)) {
+                    throw e;
+                }
+                final long delay = delayNanos(retry);
+                if (delay >= deadline.remainingNanos()) {
+                    throw e;
+                }
+                if (!withdraw()) {
+                    requestMetrics.retrySkipped();
+                    throw e;
+                }
+                requestMetrics.retried();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                if (deadline.isExpired()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /* No response, or a server error, may be answered on another try.
+     * Rejections by the circuit breaker or the concurrency limit, passed
+     * deadlines and client errors will not.
+     */
+    static boolean isRetriable(Exception e) {
+        if (e instanceof ProcessingException) {
+            return true;
+        }
+        return e instanceof IDPConnectorUnexpectedStatusCodeException
+                && ((IDPConnectorUnexpectedStatusCodeException) e).getStatusCode() >= 500;
+    }
+
+    long delayNanos(int retry) {
+        final long ceiling = backoffNanos << Math.min(retry, 20);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private boolean withdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < RETRY_COST) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - RETRY_COST));
+        return true;
+    }
+}
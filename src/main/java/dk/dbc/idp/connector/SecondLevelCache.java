@@ -0,0 +1,331 @@
+package dk.dbc.idp.connector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Typed view of a {@link RemoteCache} as second level behind the local caches
+ * <p>
+ * Values are stored with the time they were fetched from the IDP, so entries
+ * copied into a local cache expire when the original entry does. Failures of
+ * the remote cache are logged and treated as misses, the IDP is the source of
+ * truth. All methods are no-ops when no remote cache is given.
+ * </p>
+ * <p>
+ * Remote caches cannot be searched, so invalidating a user, a group or
+ * everything stores a marker with the time of invalidation in the remote
+ * cache, kept for as long as any value. Values written by any replica before
+ * the latest marker covering their key are treated as misses. Hits need up
+ * to three markers, which are kept locally for {@link #MARKER_CACHE_AGE}, so
+ * an invalidation by another replica may take that long to be seen here.
+ * </p>
+ * <p>
+ * Markers and values carry the wall clock time of the replicas writing them.
+ * Values written up to {@link #MAX_CLOCK_SKEW} after a marker are treated as
+ * invalidated too, so invalidations hold as long as the clocks of the
+ * replicas differ by less than that.
+ * </p>
+ */
+class SecondLevelCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SecondLevelCache.class);
+    private static final String AUTHENTICATE = "authenticate/";
+    private static final String AUTHORIZE = "authorize/";
+    private static final String INVALIDATED = "invalidated/";
+    private static final byte VERSION = 2;
+    private static final long NO_MARKER = Long.MIN_VALUE;
+    private static final long MARKER_CACHE_SIZE = 10000;
+
+    static final Duration MARKER_CACHE_AGE = Duration.ofSeconds(1);
+    static final Duration MAX_CLOCK_SKEW = Duration.ofSeconds(1);
+
+    private final RemoteCache remoteCache;
+    private final Duration timeToLive;
+    private final ExpiringCache<String, Long> markers;
+    private final LongSupplier clock;
+
+    /**
+     * @param remoteCache remote cache, or null for none
+     * @param timeToLive time to keep values, the remote cache is not used unless positive
+     */
+    SecondLevelCache(RemoteCache remoteCache, Duration timeToLive) {
+        this(remoteCache, timeToLive, System::currentTimeMillis, System::nanoTime);
+    }
+
+    /**
+     * @param remoteCache remote cache, or null for none
+     * @param timeToLive time to keep values, the remote cache is not used unless positive
+     * @param clock wall clock time in milliseconds, stored with values and markers
+     * @param ticker nanosecond time source of the local copies of markers
+     */
+    SecondLevelCache(RemoteCache remoteCache, Duration timeToLive, LongSupplier clock, LongSupplier ticker) {
+        this.remoteCache = timeToLive.isNegative() || timeToLive.isZero() ? null : remoteCache;
+        this.timeToLive = timeToLive;
+        this.markers = new ExpiringCache<>(MARKER_CACHE_AGE, Duration.ZERO, MARKER_CACHE_SIZE, ticker);
+        this.clock = clock;
+    }
+
+    boolean isEnabled() {
+        return remoteCache != null;
+    }
+
+    Hit<AuthenticateResponse> getAuthenticateResponse(CacheKey key) {
+        final DataInputStream in = get(AUTHENTICATE + key.toRemoteKey());
+        if (in == null) {
+            return null;
+        }
+        try {
+            final long writtenAt = readWrittenAt(in);
+            final long ageNanos = ageOf(writtenAt);
+            return ageNanos < timeToLive.toNanos() && !isInvalidated(key, writtenAt)
+                    ? new Hit<>(CacheCodec.readAuthenticateResponse(in), ageNanos) : null;
+        } catch (IOException e) {
+            LOGGER.warn("Ignoring undecodable remote cache value for {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    Hit<Authorization> getAuthorization(CacheKey key) {
+        final DataInputStream in = get(AUTHORIZE + key.toRemoteKey());
+        if (in == null) {
+            return null;
+        }
+        try {
+            final long writtenAt = readWrittenAt(in);
+            final long ageNanos = ageOf(writtenAt);
+            return ageNanos < timeToLive.toNanos() && !isInvalidated(key, writtenAt)
+                    ? new Hit<>(CacheCodec.readAuthorization(in), ageNanos) : null;
+        } catch (IOException e) {
+            LOGGER.warn("Ignoring undecodable remote cache value for {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    void putAuthenticateResponse(CacheKey key, AuthenticateResponse response) {
+        if (remoteCache == null) {
+            return;
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = writeHeader(bytes);
+            CacheCodec.writeAuthenticateResponse(out, response);
+            put(AUTHENTICATE + key.toRemoteKey(), bytes.toByteArray(), timeToLive);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Caches authorization for the configured time to live, or for its
+     * max-age if that is shorter
+     * @param key key
+     * @param authorization authorization
+     */
+    void putAuthorization(CacheKey key, Authorization authorization) {
+        if (remoteCache == null) {
+            return;
+        }
+        final Duration maxAge = authorization.getDirectives().getMaxAge();
+        final Duration expiresAfter = maxAge != null && maxAge.compareTo(timeToLive) < 0 ? maxAge : timeToLive;
+        if (expiresAfter.isZero()) {
+            return;
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = writeHeader(bytes);
+            CacheCodec.writeAuthorization(out, authorization);
+            put(AUTHORIZE + key.toRemoteKey(), bytes.toByteArray(), expiresAfter);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes both values cached for key from the remote cache and from the
+     * local caches of all subscribed connectors
+     * @param key key
+     */
+    void invalidate(CacheKey key) {
+        if (remoteCache == null) {
+            return;
+        }
+        try {
+            remoteCache.invalidate(AUTHENTICATE + key.toRemoteKey());
+            remoteCache.invalidate(AUTHORIZE + key.toRemoteKey());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to invalidate {} in remote cache: {}", key, e.getMessage());
+        }
+    }
+
+    /**
+     * Invalidates all values cached for a user by any replica, and frees
+     * those held by an {@link OffHeapCache}
+     * @param user user
+     * @param group group of the user
+     */
+    void invalidateUser(String user, String group) {
+        freeOffHeap(group, key -> key.getUser().equals(user));
+        markInvalidated(userMarker(user, group));
+    }
+
+    /**
+     * Invalidates all values cached for a group by any replica, and frees
+     * those held by an {@link OffHeapCache}
+     * @param group group
+     */
+    void invalidateGroup(String group) {
+        freeOffHeap(group, key -> true);
+        markInvalidated(groupMarker(group));
+    }
+
+    /**
+     * Invalidates all values cached by any replica, and frees those held by
+     * an {@link OffHeapCache}
+     */
+    void invalidateAll() {
+        if (remoteCache instanceof OffHeapCache) {
+            ((OffHeapCache) remoteCache).clear();
+        }
+        markInvalidated(INVALIDATED);
+    }
+
+    /**
+     * @param listener called with keys invalidated by any connector
+     */
+    void subscribe(Consumer<CacheKey> listener) {
+        if (remoteCache == null) {
+            return;
+        }
+        remoteCache.subscribe(remoteKey -> {
+            final int prefixEnd = remoteKey.indexOf('/');
+            try {
+                listener.accept(CacheKey.fromRemoteKey(remoteKey.substring(prefixEnd + 1)));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Ignoring invalidation of unknown key {}: {}", remoteKey, e.getMessage());
+            }
+        });
+    }
+
+    private DataInputStream get(String remoteKey) {
+        if (remoteCache == null) {
+            return null;
+        }
+        try {
+            final byte[] bytes = remoteCache.get(remoteKey);
+            return bytes == null ? null : new DataInputStream(new ByteArrayInputStream(bytes));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Remote cache lookup failed: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private void put(String remoteKey, byte[] bytes, Duration expiresAfter) {
+        try {
+            remoteCache.put(remoteKey, bytes, expiresAfter);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Remote cache update failed: {}", e.getMessage());
+        }
+    }
+
+    private void freeOffHeap(String group, Predicate<CacheKey> filter) {
+        if (!(remoteCache instanceof OffHeapCache)) {
+            return;
+        }
+        final String marker = '/' + URLEncoder.encode(group, StandardCharsets.UTF_8) + '/';
+        ((OffHeapCache) remoteCache).invalidateIf(marker, remoteKey -> {
+            if (!remoteKey.startsWith(AUTHENTICATE) && !remoteKey.startsWith(AUTHORIZE)) {
+                return false;
+            }
+            final CacheKey key = CacheKey.fromRemoteKey(remoteKey.substring(remoteKey.indexOf('/') + 1));
+            return key.getGroup().equals(group) && filter.test(key);
+        });
+    }
+
+    private void markInvalidated(String marker) {
+        if (remoteCache == null) {
+            return;
+        }
+        final long invalidatedAt = clock.getAsLong();
+        // Seen by this replica at once, by others when their copy expires
+        markers.put(marker, invalidatedAt);
+        put(marker, ByteBuffer.allocate(Long.BYTES).putLong(invalidatedAt).array(), timeToLive);
+    }
+
+    /* A marker that cannot be read may hide an invalidation, so the
+     * value is then treated as invalidated as well
+     */
+    private boolean isInvalidated(CacheKey key, long writtenAt) {
+        for (String marker : new String[]{INVALIDATED, groupMarker(key.getGroup()),
+                userMarker(key.getUser(), key.getGroup())}) {
+            try {
+                final long invalidatedAt = invalidatedAt(marker);
+                if (invalidatedAt != NO_MARKER && writtenAt <= invalidatedAt + MAX_CLOCK_SKEW.toMillis()) {
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Remote cache lookup of invalidations failed: {}", e.getMessage());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long invalidatedAt(String marker) {
+        final Long cached = markers.get(marker);
+        if (cached != null) {
+            return cached;
+        }
+        final byte[] bytes = remoteCache.get(marker);
+        final long invalidatedAt = bytes == null ? NO_MARKER : ByteBuffer.wrap(bytes).getLong();
+        markers.put(marker, invalidatedAt);
+        return invalidatedAt;
+    }
+
+    private static String groupMarker(String group) {
+        return INVALIDATED + URLEncoder.encode(group, StandardCharsets.UTF_8);
+    }
+
+    private static String userMarker(String user, String group) {
+        return groupMarker(group) + '/' + URLEncoder.encode(user, StandardCharsets.UTF_8);
+    }
+
+    private DataOutputStream writeHeader(ByteArrayOutputStream bytes) throws IOException {
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        out.writeLong(clock.getAsLong());
+        return out;
+    }
+
+    private static long readWrittenAt(DataInputStream in) throws IOException {
+        if (in.readByte() != VERSION) {
+            throw new IOException("unknown version");
+        }
+        return in.readLong();
+    }
+
+    private long ageOf(long writtenAt) {
+        return Math.max(0, clock.getAsLong() - writtenAt) * 1_000_000;
+    }
+
+    static final class Hit<V> {
+        final V value;
+        final long ageNanos;
+
+        Hit(V value, long ageNanos) {
+            this.value = value;
+            this.ageNanos = ageNanos;
+        }
+    }
+}
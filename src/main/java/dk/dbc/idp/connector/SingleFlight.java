@@ -0,0 +1,138 @@
+package dk.dbc.idp.connector;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Coalesces concurrent calls for the same key
+ * <p>
+ * The first caller for a key executes the call, while callers arriving
+ * before it completes wait for and share its result, or its exception.
+ * </p>
+ *
+ * @param <K> key type
+ * @param <V> result type
+ */
+class SingleFlight<K, V> {
+    @FunctionalInterface
+    interface Call<V> {
+        V call() throws IDPConnectorException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * @param key key
+     * @return the pending result of the call currently in flight for the key,
+     * or null if there is none
+     */
+    CompletableFuture<V> inFlight(K key) {
+        return calls.get(key);
+    }
+
+    /**
+     * Executes call unless a call for the same key is already in flight,
+     * in which case its result is awaited instead
+     * @param key key
+     * @param call call to execute
+     * @return result of the call
+     * @throws IDPConnectorException if the call failed
+     */
+    V execute(K key, Call<V> call) throws IDPConnectorException {
+        return execute(key, call, Deadline.NONE);
+    }
+
+    /**
+     * Executes call unless a call for the same key is already in flight,
+     * in which case its result is awaited until the deadline
+     * <p>
+     * The call is expected to keep the deadline itself.
+     * </p>
+     * @param key key
+     * @param call call to execute
+     * @param deadline deadline of the caller
+     * @return result of the call
+     * @throws IDPConnectorTimeoutException if the deadline passed waiting for a call in flight
+     * @throws IDPConnectorException if the call failed
+     */
+    V execute(K key, Call<V> call, Deadline deadline) throws IDPConnectorException {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final CompletableFuture<V> existing = calls.putIfAbsent(key, future);
+        if (existing != null) {
+            return deadline.await(existing);
+        }
+        try {
+            final V result = call.call();
+            future.complete(result);
+            return result;
+        } catch (IDPConnectorException | RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, future);
+        }
+    }
+
+    /**
+     * Executes call using executor unless a call for the same key is already
+     * in flight, in which case the pending result of that call is returned
+     * <p>
+     * The returned future is shared between callers, and must not be
+     * completed or cancelled by them.
+     * </p>
+     * @param key key
+     * @param call call to execute
+     * @param executor executor running the call
+     * @return pending result of the call
+     */
+    CompletableFuture<V> executeAsync(K key, Call<V> call, Executor executor) {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final CompletableFuture<V> existing = calls.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    calls.remove(key, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            calls.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Waits for a pending call, rethrowing its exception as is
+     * @param future pending result
+     * @param <V> result type
+     * @return result
+     * @throws IDPConnectorException if the call failed
+     */
+    static <V> V await(CompletableFuture<V> future) throws IDPConnectorException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IDPConnectorException) {
+                throw (IDPConnectorException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
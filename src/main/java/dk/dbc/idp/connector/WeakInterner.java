@@ -0,0 +1,83 @@
+package dk.dbc.idp.connector;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of canonical instances of immutable values
+ * <p>
+ * Equal values interned return one shared instance, so memory held by
+ * equal values is only held once. The pool only references its values
+ * weakly: once no one else holds a canonical instance it is collected,
+ * and its pool entry is dropped on a later call.
+ * </p>
+ *
+ * @param <T> value type, must be immutable with consistent equals and hashCode
+ */
+class WeakInterner<T> {
+    private final ConcurrentHashMap<Ref<T>, Ref<T>> pool = new ConcurrentHashMap<>();
+    private final ReferenceQueue<T> cleared = new ReferenceQueue<>();
+
+    /**
+     * @param value value
+     * @return the canonical instance equal to value, value itself if it is the first of its kind
+     */
+    T intern(T value) {
+        expungeCleared();
+        final Ref<T> ref = new Ref<>(value, cleared);
+        while (true) {
+            final Ref<T> existing = pool.putIfAbsent(ref, ref);
+            if (existing == null) {
+                return value;
+            }
+            final T canonical = existing.get();
+            if (canonical != null) {
+                return canonical;
+            }
+            // Collected after it was found, replace it
+            pool.remove(existing, existing);
+        }
+    }
+
+    /**
+     * @return number of canonical instances, including collected ones not yet dropped
+     */
+    int size() {
+        expungeCleared();
+        return pool.size();
+    }
+
+    private void expungeCleared() {
+        Reference<? extends T> ref;
+        while ((ref = cleared.poll()) != null) {
+            pool.remove(ref, ref);
+        }
+    }
+
+    private static final class Ref<T> extends WeakReference<T> {
+        private final int hash;
+
+        Ref(T value, ReferenceQueue<T> queue) {
+            super(value, queue);
+            this.hash = value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Ref)) return false;
+            final Ref<?> that = (Ref<?>) o;
+            if (hash != that.hash) return false;
+            final T value = get();
+            // Collected values are only equal to their own reference
+            return value != null && value.equals(that.get());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AuthorizationDecoderTest {
+    @Test
+    void decodesRightsSkippingDescriptionsAndUnknownFields() throws IOException {
+        final Authorization authorization = decode("{\"authenticated\":true,\"agencyId\":\"realgroup\"," +
+                "\"identity\":\"realuser\",\"unknown\":{\"nested\":[1,2]},\"rights\":[" +
+                "{\"productName\":\"POSTHUS\",\"name\":\"READ\",\"description\":\"Is allowed to read\"}," +
+                "{\"productName\":\"POSTHUS\",\"name\":\"WRITE\",\"extra\":[\"x\"]}," +
+                "{\"productName\":\"EMNEORD\"}," +
+                "{\"name\":\"ORPHAN\"}]}");
+
+        assertThat(authorization.isAuthenticated(), is(true));
+        assertThat(authorization.getAgencyId(), is("realgroup"));
+        assertThat(authorization.getIdentity(), is("realuser"));
+        assertThat(authorization.getRights().hasRight("POSTHUS", "READ"), is(true));
+        assertThat(authorization.getRights().hasRight("POSTHUS", "WRITE"), is(true));
+        assertThat(authorization.getRights().hasRightName("EMNEORD"), is(true));
+        assertThat(authorization.getRights().rights.size(), is(2));
+    }
+
+    @Test
+    void decodesLikeJackson() throws IOException {
+        final String json = "{\"authenticated\":true,\"rights\":[" +
+                "{\"productName\":\"EMNEORD\",\"name\":\"READ\",\"description\":\"d\"}," +
+                "{\"productName\":\"POSTHUS\",\"name\":\"READ\",\"description\":null}]}";
+        final AuthorizeResponse response = new JacksonConfig().getContext(AuthorizeResponse.class)
+                .readValue(json, AuthorizeResponse.class);
+
+        assertThat(decode(json).getRights(), is(Authorization.of(response).getRights()));
+    }
+
+    @Test
+    void rightsOfUnauthenticatedUsersAreIgnored() throws IOException {
+        final Authorization authorization = decode("{\"rights\":[{\"productName\":\"POSTHUS\",\"name\":\"READ\"}]," +
+                "\"authenticated\":false}");
+
+        assertThat(authorization.isAuthenticated(), is(false));
+        assertThat(authorization.getRights(), is(IDPConnector.RightSet.EMPTY));
+    }
+
+    @Test
+    void nullRights() throws IOException {
+        assertThat(decode("{\"authenticated\":true,\"rights\":null}").getRights(), is(IDPConnector.RightSet.EMPTY));
+    }
+
+    @Test
+    void nullEntity() throws IOException {
+        assertThat(decode("null"), is(nullValue()));
+    }
+
+    @Test
+    void malformedJson() {
+        assertThrows(IOException.class, () -> decode("{\"authenticated\":true,\"rights\":[{\"productName\":\"A\"}"));
+        assertThrows(IOException.class, () -> decode("[]"));
+        assertThrows(IOException.class, () -> decode("{\"rights\":{}}"));
+    }
+
+    private static Authorization decode(String json) throws IOException {
+        return AuthorizationDecoder.decode(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,44 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class CacheDirectivesTest {
+    @Test
+    void maxAge() {
+        assertThat(CacheDirectives.parseMaxAge("private, max-age=300"), is(Duration.ofMinutes(5)));
+        assertThat(CacheDirectives.parseMaxAge("Max-Age=\"60\""), is(Duration.ofMinutes(1)));
+        assertThat(CacheDirectives.parseMaxAge("max-age=60, no-cache"), is(Duration.ZERO));
+        assertThat(CacheDirectives.parseMaxAge("no-store"), is(Duration.ZERO));
+        assertThat(CacheDirectives.parseMaxAge("max-age=soon"), is(nullValue()));
+        assertThat(CacheDirectives.parseMaxAge("private"), is(nullValue()));
+        assertThat(CacheDirectives.parseMaxAge(null), is(nullValue()));
+    }
+
+    @Test
+    void notModifiedKeepsValidatorsItDoesNotRepeat() {
+        final CacheDirectives previous = new CacheDirectives(Duration.ofMinutes(5), "\"v1\"", "Tue, 13 Oct 2026 08:00:00 GMT");
+        final CacheDirectives revalidated = new CacheDirectives(Duration.ofMinutes(10), null, null).revalidating(previous);
+
+        assertThat(revalidated.getMaxAge(), is(Duration.ofMinutes(10)));
+        assertThat(revalidated.conditionalHeaders(), is(Map.of(
+                "If-None-Match", "\"v1\"",
+                "If-Modified-Since", "Tue, 13 Oct 2026 08:00:00 GMT")));
+        assertThat(CacheDirectives.NONE.hasValidators(), is(false));
+    }
+
+    @Test
+    void notModifiedWithoutMaxAgeKeepsPreviousMaxAge() {
+        final CacheDirectives previous = new CacheDirectives(Duration.ofMinutes(5), "\"v1\"", null);
+        final CacheDirectives revalidated = new CacheDirectives(null, null, null).revalidating(previous);
+
+        assertThat(revalidated.getMaxAge(), is(Duration.ofMinutes(5)));
+        assertThat(revalidated.conditionalHeaders(), is(Map.of("If-None-Match", "\"v1\"")));
+    }
+}
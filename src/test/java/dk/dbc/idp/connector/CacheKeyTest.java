@@ -0,0 +1,81 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class CacheKeyTest {
+    private final CacheKey.Factory factory = new CacheKey.Factory();
+
+    @Test
+    void sameTripleGivesEqualKeys() {
+        final CacheKey key = factory.create("user", "group", "password");
+
+        assertThat(factory.create("user", "group", "password"), is(key));
+        assertThat(factory.create("user", "group", "password").hashCode(), is(key.hashCode()));
+    }
+
+    @Test
+    void differentTriplesGiveDifferentKeys() {
+        final CacheKey key = factory.create("user", "group", "password");
+
+        assertThat(factory.create("user", "group", "Password"), is(not(key)));
+        assertThat(factory.create("user", "other", "password"), is(not(key)));
+        assertThat(factory.create("other", "group", "password"), is(not(key)));
+    }
+
+    @Test
+    void separatorsInComponentsDoNotCollide() {
+        assertThat(factory.create("a_b", "c", "d"), is(not(factory.create("a", "b_c", "d"))));
+    }
+
+    @Test
+    void toStringHidesPassword() {
+        assertThat(factory.create("user", "group", "secret").toString().contains("secret"), is(false));
+    }
+
+    @Test
+    void keysDependOnFactorySecret() {
+        assertThat(new CacheKey.Factory().create("user", "group", "password"),
+                is(not(factory.create("user", "group", "password"))));
+    }
+
+    @Test
+    void remoteKeyRoundTrips() {
+        final CacheKey key = factory.create("us/er", "gr%up", "password");
+
+        assertThat(key.toRemoteKey().contains("password"), is(false));
+        assertThat(CacheKey.fromRemoteKey(key.toRemoteKey()), is(key));
+    }
+
+    @Test
+    void factoriesFromSameCacheSecretGiveEqualKeys() {
+        final byte[] secret = "a secret of sufficient length".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(CacheKey.Factory.fromCacheSecret(secret).create("user", "group", "password"),
+                is(CacheKey.Factory.fromCacheSecret(secret).create("user", "group", "password")));
+    }
+
+    @Test
+    void concurrentlyCreatedKeysAreEqual() throws Exception {
+        final CacheKey key = factory.create("user", "group", "password");
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final List<Future<CacheKey>> keys = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                keys.add(executor.submit(() -> factory.create("user", "group", "password")));
+            }
+            for (Future<CacheKey> created : keys) {
+                assertThat(created.get(), is(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CacheSnapshotTest {
+    private static final byte[] SECRET = "a secret of sufficient length".getBytes(StandardCharsets.UTF_8);
+
+    private final CacheKey.Factory keys = CacheKey.Factory.fromCacheSecret(SECRET);
+    private final CacheKey key = keys.create("user", "group", "password");
+
+    @Test
+    void restoresWrittenEntries() throws IOException {
+        final Path file = snapshotFile();
+        final ExpiringCache<CacheKey, AuthenticateResponse> authenticateCache = cache();
+        final ExpiringCache<CacheKey, Authorization> authorizeCache = cache();
+        authenticateCache.put(key, authenticateResponse());
+        authorizeCache.put(key, authorization());
+
+        assertThat(new CacheSnapshot(file, SECRET).write(authenticateCache, authorizeCache), is(2));
+
+        final ExpiringCache<CacheKey, AuthenticateResponse> restoredAuthenticateCache = cache();
+        final ExpiringCache<CacheKey, Authorization> restoredAuthorizeCache = cache();
+        assertThat(new CacheSnapshot(file, SECRET).restore(restoredAuthenticateCache, restoredAuthorizeCache), is(2));
+
+        final CacheKey restartedKey = CacheKey.Factory.fromCacheSecret(SECRET)
+                .create("user", "group", "password");
+        assertThat(restoredAuthenticateCache.get(restartedKey).getIdentity(), is("identity"));
+        final Authorization authorization = restoredAuthorizeCache.get(restartedKey);
+        assertThat(authorization.isAuthenticated(), is(true));
+        assertThat(authorization.getAgencyId(), is("group"));
+        assertThat(authorization.getRights(), is(authorization().getRights()));
+    }
+
+    @Test
+    void expiredEntriesAreNotRestored() throws IOException {
+        final Path file = snapshotFile();
+        final ExpiringCache<CacheKey, Authorization> authorizeCache = cache();
+        authorizeCache.put(key, authorization(), Duration.ofMinutes(59).toNanos());
+        new CacheSnapshot(file, SECRET).write(cache(), authorizeCache);
+
+        final ExpiringCache<CacheKey, Authorization> restoredAuthorizeCache =
+                new ExpiringCache<>(Duration.ofMinutes(30), 0);
+        new CacheSnapshot(file, SECRET).restore(cache(), restoredAuthorizeCache);
+
+        assertThat(restoredAuthorizeCache.get(key), is(nullValue()));
+    }
+
+    @Test
+    void restoredEntriesKeepTheirMaxAgeAndValidators() throws IOException {
+        final Path file = snapshotFile();
+        final ExpiringCache<CacheKey, Authorization> authorizeCache = cache();
+        final CacheDirectives directives = new CacheDirectives(Duration.ofMinutes(1), "\"v1\"", null);
+        authorizeCache.put(key, authorization().withDirectives(directives), 0, directives.getMaxAge());
+        new CacheSnapshot(file, SECRET).write(cache(), authorizeCache);
+
+        final ExpiringCache<CacheKey, Authorization> restoredAuthorizeCache = cache();
+        new CacheSnapshot(file, SECRET).restore(cache(), restoredAuthorizeCache);
+
+        final ExpiringCache.Entry<Authorization> restored = restoredAuthorizeCache.getEntry(key);
+        assertThat(restoredAuthorizeCache.timeToLiveOf(restored), is(Duration.ofMinutes(1).toNanos()));
+        assertThat(restored.value.getDirectives().conditionalHeaders(), is(directives.conditionalHeaders()));
+    }
+
+    @Test
+    void missingSnapshotRestoresNothing() throws IOException {
+        assertThat(new CacheSnapshot(snapshotFile(), SECRET).restore(cache(), cache()), is(0));
+    }
+
+    @Test
+    void tamperedSnapshotIsRejected() throws IOException {
+        final Path file = snapshotFile();
+        final ExpiringCache<CacheKey, Authorization> authorizeCache = cache();
+        authorizeCache.put(key, authorization());
+        new CacheSnapshot(file, SECRET).write(cache(), authorizeCache);
+
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file, bytes);
+
+        assertThrows(IOException.class, () -> new CacheSnapshot(file, SECRET).restore(cache(), cache()));
+    }
+
+    @Test
+    void snapshotWithOtherSecretIsRejected() throws IOException {
+        final Path file = snapshotFile();
+        final ExpiringCache<CacheKey, Authorization> authorizeCache = cache();
+        authorizeCache.put(key, authorization());
+        new CacheSnapshot(file, SECRET).write(cache(), authorizeCache);
+
+        final byte[] otherSecret = "another secret of sufficient length".getBytes(StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> new CacheSnapshot(file, otherSecret).restore(cache(), cache()));
+    }
+
+    private static <V> ExpiringCache<CacheKey, V> cache() {
+        return new ExpiringCache<>(Duration.ofHours(1), 0);
+    }
+
+    private static Path snapshotFile() throws IOException {
+        final Path directory = Files.createTempDirectory("cache-snapshot");
+        directory.toFile().deleteOnExit();
+        return directory.resolve("snapshot");
+    }
+
+    private static AuthenticateResponse authenticateResponse() {
+        final AuthenticateResponse response = new AuthenticateResponse();
+        response.setAuthenticated(true);
+        response.setAgencyId("group");
+        response.setIdentity("identity");
+        return response;
+    }
+
+    private static Authorization authorization() {
+        final IDPRights read = new IDPRights();
+        read.setProductName("POSTHUS");
+        read.setName("READ");
+        final IDPRights nameOnly = new IDPRights();
+        nameOnly.setProductName("NETPUNKT");
+        return new Authorization(true, "group", null, IDPConnector.RightSet.of(List.of(read, nameOnly)));
+    }
+}
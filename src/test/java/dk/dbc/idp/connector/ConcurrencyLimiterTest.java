@@ -0,0 +1,93 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ConcurrencyLimiterTest {
+    private static final long LATENCY = Duration.ofMillis(10).toNanos();
+
+    @Test
+    void rejectsBeyondLimit() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10);
+        assertThat(limiter.tryAcquire(), is(true));
+        assertThat(limiter.tryAcquire(), is(true));
+        assertThat(limiter.tryAcquire(), is(false));
+        assertThat(limiter.getInFlight(), is(2));
+    }
+
+    @Test
+    void overloadShrinksLimit() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10);
+        limiter.tryAcquire();
+        limiter.release(LATENCY, true);
+        assertThat(limiter.getLimit(), is(7));
+        assertThat(limiter.getInFlight(), is(0));
+    }
+
+    @Test
+    void limitNeverDropsBelowOne() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 10);
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire();
+            limiter.release(LATENCY, true);
+        }
+        assertThat(limiter.getLimit(), is(1));
+        assertThat(limiter.tryAcquire(), is(true));
+    }
+
+    @Test
+    void successGrowsLimitUpToMaximum() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 3);
+        releaseSuccessfully(limiter, 3);
+        assertThat(limiter.getLimit(), is(3));
+
+        releaseSuccessfully(limiter, 100);
+        assertThat(limiter.getLimit(), is(3));
+    }
+
+    @Test
+    void risingLatencyShrinksLimitOncePerLimitOfRequests() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10);
+        releaseSuccessfully(limiter, 100);
+        assertThat(limiter.getLimit(), is(10));
+
+        releaseSlowly(limiter, 2);
+        assertThat(limiter.getLimit(), is(7));
+
+        releaseSlowly(limiter, 6);
+        assertThat(limiter.getLimit(), is(7));
+
+        releaseSlowly(limiter, 1);
+        assertThat(limiter.getLimit(), is(4));
+    }
+
+    @Test
+    void smallLatencyChangesLeaveLimit() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10);
+        releaseSuccessfully(limiter, 100);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire();
+            limiter.release(LATENCY + (i % 2) * LATENCY / 2, false);
+        }
+        assertThat(limiter.getLimit(), is(10));
+    }
+
+    private static void releaseSuccessfully(ConcurrencyLimiter limiter, int times) {
+        for (int i = 0; i < times; i++) {
+            limiter.tryAcquire();
+            limiter.release(LATENCY, false);
+        }
+    }
+
+    private static void releaseSlowly(ConcurrencyLimiter limiter, int times) {
+        for (int i = 0; i < times; i++) {
+            limiter.tryAcquire();
+            limiter.release(10 * LATENCY, false);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class EndpointBalancerTest {
+    private static final long MILLIS = 1_000_000;
+    private static final long SECONDS = 1_000 * MILLIS;
+
+    private final AtomicLong ticker = new AtomicLong();
+    private final EndpointBalancer balancer = new EndpointBalancer(List.of("http://a", "http://b"),
+            3, Duration.ofSeconds(30), Duration.ofSeconds(30), ticker::get);
+    private final EndpointBalancer.Endpoint a = balancer.getEndpoints().get(0);
+    private final EndpointBalancer.Endpoint b = balancer.getEndpoints().get(1);
+
+    @Test
+    void fasterEndpointIsPreferred() {
+        answer(a, 10 * MILLIS);
+        answer(b, 500 * MILLIS);
+
+        for (int i = 0; i < 100; i++) {
+            final EndpointBalancer.Endpoint endpoint = balancer.acquire();
+            assertThat(endpoint, is(sameInstance(a)));
+            balancer.release(endpoint, 10 * MILLIS, false);
+        }
+    }
+
+    @Test
+    void failingEndpointIsEjected() {
+        for (int i = 0; i < 3; i++) {
+            answer(b, MILLIS, true);
+        }
+        assertThat(b.isAvailable(ticker.get()), is(false));
+        for (int i = 0; i < 10; i++) {
+            final EndpointBalancer.Endpoint endpoint = balancer.acquire();
+            assertThat(endpoint, is(sameInstance(a)));
+            balancer.release(endpoint, MILLIS, false);
+        }
+
+        ticker.addAndGet(30 * SECONDS);
+        assertThat(b.isAvailable(ticker.get()), is(true));
+
+        // Ejected again, for twice as long
+        for (int i = 0; i < 3; i++) {
+            answer(b, MILLIS, true);
+        }
+        ticker.addAndGet(59 * SECONDS);
+        assertThat(b.isAvailable(ticker.get()), is(false));
+        ticker.addAndGet(SECONDS);
+        assertThat(b.isAvailable(ticker.get()), is(true));
+    }
+
+    @Test
+    void lastAvailableEndpointIsNeverEjected() {
+        for (int i = 0; i < 3; i++) {
+            answer(b, MILLIS, true);
+        }
+        for (int i = 0; i < 3; i++) {
+            answer(a, MILLIS, true);
+        }
+
+        assertThat(a.isAvailable(ticker.get()), is(true));
+        assertThat(balancer.acquire(), is(sameInstance(a)));
+    }
+
+    @Test
+    void recoveredEndpointStartsSlowly() {
+        answer(a, 10 * MILLIS);
+        for (int i = 0; i < 3; i++) {
+            answer(b, 10 * MILLIS, true);
+        }
+        ticker.addAndGet(30 * SECONDS);
+        answer(b, 10 * MILLIS);
+        answer(a, 10 * MILLIS);
+
+        // The recovered endpoint is only chosen once the other has many times its load
+        int chosenFirst = 0;
+        while (balancer.acquire() == a) {
+            chosenFirst++;
+        }
+        assertThat(chosenFirst > 20, is(true));
+    }
+
+    private void answer(EndpointBalancer.Endpoint endpoint, long elapsedNanos) {
+        answer(endpoint, elapsedNanos, false);
+    }
+
+    private void answer(EndpointBalancer.Endpoint endpoint, long elapsedNanos, boolean failed) {
+        balancer.record(endpoint, elapsedNanos, failed);
+    }
+}
@@ -0,0 +1,215 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ExpiringCacheTest {
+    private final AtomicLong ticker = new AtomicLong();
+
+    @Test
+    void getReturnsValueUntilExpired() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ZERO, 0, ticker::get);
+        cache.put("key", "value");
+
+        ticker.set(9);
+        assertThat(cache.get("key"), is("value"));
+
+        ticker.set(10);
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    void entriesCanHaveTheirOwnTimeToLive() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ZERO, 0, ticker::get);
+        cache.put("short", "value", 0, Duration.ofNanos(5));
+        cache.put("long", "value", 0, Duration.ofNanos(20));
+        cache.put("key", "value");
+        cache.put("key", "value", 0, Duration.ZERO);
+
+        ticker.set(5);
+        assertThat(cache.get("short"), is(nullValue()));
+        ticker.set(19);
+        assertThat(cache.get("long"), is("value"));
+        assertThat(cache.timeToLiveOf(cache.getEntry("long")), is(20L));
+        assertThat(cache.get("key"), is(nullValue()));
+    }
+
+    @Test
+    void removeIndexedRemovesMatchingKeysOfIndexValue() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ZERO, 0, ticker::get);
+        cache.setIndex(key -> key.charAt(0));
+        cache.put("a1", "value");
+        cache.put("a2", "value");
+        cache.put("b1", "value");
+
+        assertThat(cache.removeIndexed('a', key -> key.endsWith("1")), is(List.of("a1")));
+        assertThat(cache.removeIndexed('c', key -> true), is(List.of()));
+        assertThat(cache.get("a2"), is("value"));
+        assertThat(cache.get("b1"), is("value"));
+
+        cache.remove("a2");
+        cache.put("a2", "again");
+        assertThat(cache.removeIndexed('a', key -> true), is(List.of("a2")));
+        assertThat(cache.size(), is(1));
+    }
+
+    @Test
+    void expiredKeysLeaveIndex() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ZERO, 0, ticker::get);
+        cache.setIndex(key -> key.charAt(0));
+        cache.put("a1", "value");
+
+        ticker.set(10);
+        cache.cleanUp();
+        assertThat(cache.removeIndexed('a', key -> true), is(List.of()));
+    }
+
+    @Test
+    void zeroDurationDisablesCache() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ZERO, Duration.ZERO, 0, ticker::get);
+        cache.put("key", "value");
+
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    void negativeDurationNeverExpires() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(-1), Duration.ZERO, 0, ticker::get);
+        cache.put("key", "value");
+
+        ticker.set(Long.MAX_VALUE);
+        assertThat(cache.get("key"), is("value"));
+    }
+
+    @Test
+    void writesSweepExpiredEntries() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ZERO, 0, ticker::get);
+        cache.put("a", "1");
+        cache.put("b", "2");
+
+        ticker.set(10);
+        cache.put("c", "3");
+
+        assertThat(cache.size(), is(1));
+        assertThat(cache.get("c"), is("3"));
+    }
+
+    @Test
+    void sweepIsSpreadOverWrites() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ZERO, 0, ticker::get);
+        for (int i = 0; i < 2 * ExpiringCache.SWEEP_BATCH_SIZE; i++) {
+            cache.put("key" + i, "value");
+        }
+
+        ticker.set(10);
+        cache.put("a", "1");
+        assertThat(cache.size() > ExpiringCache.SWEEP_BATCH_SIZE, is(true));
+        cache.put("b", "2");
+        cache.put("c", "3");
+
+        assertThat(cache.size(), is(3));
+    }
+
+    @Test
+    void fullCacheEvictsLeastFrequentlyUsed() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ZERO, 2, ticker::get);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        readTimes(cache, "a", 3);
+
+        readTimes(cache, "c", 1);
+        cache.put("c", "3");
+
+        assertThat(cache.size(), is(2));
+        assertThat(cache.get("a"), is("1"));
+        assertThat(cache.get("b"), is(nullValue()));
+        assertThat(cache.get("c"), is("3"));
+    }
+
+    @Test
+    void fullCacheRejectsLessFrequentlyUsed() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ZERO, 3, ticker::get);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        readTimes(cache, "a", 3);
+        readTimes(cache, "b", 3);
+
+        readTimes(cache, "c", 1);
+        cache.put("c", "3");
+        readTimes(cache, "d", 1);
+        cache.put("d", "4");
+
+        assertThat(cache.size(), is(3));
+        assertThat(cache.get("a"), is("1"));
+        assertThat(cache.get("b"), is("2"));
+        assertThat(cache.get("c"), is(nullValue()));
+        assertThat(cache.get("d"), is("4"));
+    }
+
+    @Test
+    void fullCacheStaysWithinMaximumSizeUnderConcurrentWrites() throws InterruptedException {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofMinutes(1), Duration.ZERO, 100);
+        final Thread[] writers = new Thread[8];
+        for (int i = 0; i < writers.length; i++) {
+            final int writer = i;
+            writers[i] = new Thread(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    cache.put(writer + "-" + j, "value");
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertThat(cache.size() <= 100, is(true));
+    }
+
+    @Test
+    void fullCacheEvictsExpiredFirst() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ZERO, 2, ticker::get);
+        cache.put("a", "1");
+        readTimes(cache, "a", 3);
+        ticker.set(5);
+        cache.put("b", "2");
+        readTimes(cache, "b", 3);
+
+        ticker.set(10);
+        cache.put("c", "3");
+
+        assertThat(cache.get("b"), is("2"));
+        assertThat(cache.get("c"), is("3"));
+    }
+
+    @Test
+    void staleEntriesAreRetained() {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(Duration.ofNanos(10), Duration.ofNanos(5), 0, ticker::get);
+        cache.put("key", "value");
+
+        ticker.set(12);
+        assertThat(cache.get("key"), is(nullValue()));
+        final ExpiringCache.Entry<String> entry = cache.getEntry("key");
+        assertThat(entry.value, is("value"));
+        assertThat(cache.isFresh(entry), is(false));
+        assertThat(cache.ageOf(entry), is(12L));
+
+        ticker.set(15);
+        assertThat(cache.getEntry("key"), is(nullValue()));
+    }
+
+    private static void readTimes(ExpiringCache<String, String> cache, String key, int times) {
+        for (int i = 0; i < times; i++) {
+            cache.get(key);
+        }
+    }
+}
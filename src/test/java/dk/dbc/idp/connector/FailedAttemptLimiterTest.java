@@ -0,0 +1,53 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class FailedAttemptLimiterTest {
+    private final AtomicLong ticker = new AtomicLong();
+    private final FailedAttemptLimiter limiter =
+            new FailedAttemptLimiter(2, Duration.ofNanos(10), 0, ticker::get);
+
+    @Test
+    void throttlesAfterMaxFailedAttempts() {
+        limiter.recordFailure("user", "group");
+        assertThat(limiter.isThrottled("user", "group"), is(false));
+
+        limiter.recordFailure("user", "group");
+        assertThat(limiter.isThrottled("user", "group"), is(true));
+        assertThat(limiter.isThrottled("user", "other"), is(false));
+    }
+
+    @Test
+    void windowStartsAtFirstFailure() {
+        limiter.recordFailure("user", "group");
+        ticker.set(5);
+        limiter.recordFailure("user", "group");
+        assertThat(limiter.isThrottled("user", "group"), is(true));
+
+        ticker.set(10);
+        assertThat(limiter.isThrottled("user", "group"), is(false));
+    }
+
+    @Test
+    void successResetsCount() {
+        limiter.recordFailure("user", "group");
+        limiter.recordSuccess("user", "group");
+        limiter.recordFailure("user", "group");
+        assertThat(limiter.isThrottled("user", "group"), is(false));
+    }
+
+    @Test
+    void zeroMaxFailedAttemptsDisablesThrottling() {
+        final FailedAttemptLimiter disabled = new FailedAttemptLimiter(0, Duration.ofNanos(10), 0, ticker::get);
+        for (int i = 0; i < 10; i++) {
+            disabled.recordFailure("user", "group");
+        }
+        assertThat(disabled.isThrottled("user", "group"), is(false));
+    }
+}
@@ -7,23 +7,33 @@ import dk.dbc.httpclient.HttpClient;
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
-import jakarta.ws.rs.client.Client;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.configureFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class IDPConnectorCacheTest {
 
     private static WireMockServer wireMockServer;
     private static String wireMockHost;
 
-    final static Client CLIENT = HttpClient.newClient(new ClientConfig()
-            .register(new JacksonFeature()));
-    static IDPConnector connector;
+    private final List<IDPConnector> connectors = new ArrayList<>();
+    IDPConnector connector;
 
     @BeforeAll
     static void startWireMockServer() {
@@ -34,10 +44,14 @@ class IDPConnectorCacheTest {
         configureFor("localhost", wireMockServer.port());
     }
 
-    @BeforeAll
-    static void setConnector() {
-        final UserAgent userAgent = new UserAgent("IDPConnectorCacheTest");
-        connector = new IDPConnector(CLIENT, userAgent, wireMockHost, 1);
+    @BeforeEach
+    void setConnector() {
+        connector = newConnector(new IDPConnectorSettings().withCacheAge(Duration.ofHours(1)));
+    }
+
+    @AfterEach
+    void closeConnectors() {
+        connectors.forEach(IDPConnector::close);
     }
 
     @AfterAll
@@ -102,4 +116,137 @@ class IDPConnectorCacheTest {
         verify(4, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
     }
 
+    @Test
+    void cacheHitSharesRightSet() throws IDPConnectorException {
+        final IDPConnector.RightSet rightSet = connector.lookupRight("realuser", "realgroup", "realpassword");
+
+        assertThat(connector.lookupRight("realuser", "realgroup", "realpassword"), sameInstance(rightSet));
+    }
+
+    @Test
+    void cacheHitAsyncIsCompleted() throws IDPConnectorException {
+        wireMockServer.resetRequests();
+
+        connector.lookupRight("realuser", "realgroup", "realpassword");
+
+        assertThat(connector.lookupRightAsync("realuser", "realgroup", "realpassword")
+                .toCompletableFuture().isDone(), is(true));
+        verify(1, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+    }
+
+    @Test
+    void authenticateAnsweredByAuthorizeCache() throws IDPConnectorException {
+        wireMockServer.resetRequests();
+
+        connector.lookupRight("realuser", "realgroup", "realpassword");
+        assertThat(connector.authenticate("realuser", "realgroup", "realpassword"), is(true));
+
+        verify(1, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+        verify(0, new RequestPatternBuilder().withUrl("/api/v1/authenticate/"));
+    }
+
+    @Test
+    void authenticateAnsweredByRejectedAuthorize() throws IDPConnectorException {
+        wireMockServer.resetRequests();
+
+        connector.lookupRight("test", "test", "test");
+        assertThat(connector.authenticate("test", "test", "test"), is(false));
+
+        verify(1, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+        verify(0, new RequestPatternBuilder().withUrl("/api/v1/authenticate/"));
+    }
+
+    @Test
+    void unifiedCacheAnswersAuthenticateAndLookupRightWithOneRequest() throws IDPConnectorException {
+        wireMockServer.resetRequests();
+        final IDPConnector unifiedConnector = newConnector(new IDPConnectorSettings().withUnifiedCache(true));
+
+        assertThat(unifiedConnector.authenticate("realuser", "realgroup", "realpassword"), is(true));
+        assertThat(unifiedConnector.lookupRight("realuser", "realgroup", "realpassword")
+                .hasRight("POSTHUS", "READ"), is(true));
+
+        verify(1, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+        verify(0, new RequestPatternBuilder().withUrl("/api/v1/authenticate/"));
+    }
+
+    @Test
+    void remoteCacheIsSharedByReplicas() throws IDPConnectorException {
+        wireMockServer.resetRequests();
+        final InMemoryRemoteCache remoteCache = new InMemoryRemoteCache();
+        final byte[] cacheSecret = "a secret shared by replicas".getBytes(StandardCharsets.UTF_8);
+        final IDPConnector replica1 = newConnector(new IDPConnectorSettings()
+                .withCacheSecret(cacheSecret).withRemoteCache(remoteCache));
+        final IDPConnector replica2 = newConnector(new IDPConnectorSettings()
+                .withCacheSecret(cacheSecret).withRemoteCache(remoteCache));
+
+        replica1.lookupRight("realuser", "realgroup", "realpassword");
+        assertThat(replica2.lookupRight("realuser", "realgroup", "realpassword")
+                .hasRight("POSTHUS", "READ"), is(true));
+
+        verify(1, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+    }
+
+    @Test
+    void repeatedFailuresAreThrottled() throws IDPConnectorException {
+        wireMockServer.resetRequests();
+        final IDPConnector throttlingConnector = newConnector(new IDPConnectorSettings().withMaxFailedAttempts(2));
+
+        throttlingConnector.lookupRight("test", "test", "nope");
+        throttlingConnector.lookupRight("test", "test", "wrong");
+        assertThrows(IDPConnectorThrottledException.class,
+                () -> throttlingConnector.lookupRight("test", "test", "wrong again"));
+        assertThrows(IDPConnectorThrottledException.class,
+                () -> throttlingConnector.authenticate("test", "test", "maybe this one"));
+        assertThat(throttlingConnector.lookupRight("test", "test", "wrong").hasRightName("POSTHUS"), is(false));
+
+        verify(2, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+    }
+
+    @Test
+    void invalidatedRightsAreFetchedAgain() throws IDPConnectorException {
+        wireMockServer.resetRequests();
+
+        connector.lookupRight("realuser", "realgroup", "realpassword");
+        connector.lookupRight("test", "test", "test");
+        assertThat(connector.invalidate("otheruser", "realgroup"), is(0));
+        assertThat(connector.invalidate("realuser", "realgroup"), is(1));
+        connector.lookupRight("realuser", "realgroup", "realpassword");
+        connector.lookupRight("test", "test", "test");
+        verify(3, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+
+        connector.invalidate(IDPRightsChangedEvent.forAgency("test"));
+        connector.lookupRight("test", "test", "test");
+        verify(4, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+
+        connector.invalidateAll();
+        connector.lookupRight("realuser", "realgroup", "realpassword");
+        verify(5, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+    }
+
+    @Test
+    void expiredRightsAreRevalidated() throws IDPConnectorException {
+        wireMockServer.resetRequests();
+        final AtomicLong ticker = new AtomicLong();
+        final IDPConnector revalidatingConnector = newConnector(new IDPConnectorSettings()
+                .withStaleIfErrorWindow(Duration.ofMinutes(1))
+                .withTicker(ticker::get));
+
+        revalidatingConnector.lookupRight("etaguser", "realgroup", "etagpassword");
+        // Expires by the max-age of the response rather than the cache age
+        ticker.addAndGet(Duration.ofMillis(1100).toNanos());
+        assertThat(revalidatingConnector.lookupRight("etaguser", "realgroup", "etagpassword")
+                .hasRight("POSTHUS", "READ"), is(true));
+
+        verify(2, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+        verify(1, new RequestPatternBuilder().withUrl("/api/v1/authorize/")
+                .withHeader("If-None-Match", equalTo("\"rights-v1\"")));
+    }
+
+    // Connectors close their client, so each gets one of its own
+    private IDPConnector newConnector(IDPConnectorSettings settings) {
+        final IDPConnector newConnector = new IDPConnector(HttpClient.newClient(new ClientConfig()
+                .register(new JacksonFeature())), new UserAgent("IDPConnectorCacheTest"), wireMockHost, settings);
+        connectors.add(newConnector);
+        return newConnector;
+    }
 }
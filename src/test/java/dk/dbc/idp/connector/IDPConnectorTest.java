@@ -1,17 +1,25 @@
 package dk.dbc.idp.connector;
 
 import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.matching.RequestPatternBuilder;
 import dk.dbc.commons.useragent.UserAgent;
 import dk.dbc.httpclient.HttpClient;
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.jackson.JacksonFeature;
 import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import jakarta.ws.rs.client.Client;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.configureFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -25,6 +33,7 @@ class IDPConnectorTest {
     final static Client CLIENT = HttpClient.newClient(new ClientConfig()
             .register(new JacksonFeature()));
     static IDPConnector connector;
+    private final List<IDPConnector> connectors = new ArrayList<>();
 
     @BeforeAll
     static void startWireMockServer() {
@@ -41,6 +50,11 @@ class IDPConnectorTest {
         connector = new IDPConnector(CLIENT, userAgent, wireMockHost, 0);
     }
 
+    @AfterEach
+    void closeConnectors() {
+        connectors.forEach(IDPConnector::close);
+    }
+
     @AfterAll
     static void stopWireMockServer() {
         wireMockServer.stop();
@@ -132,4 +146,110 @@ class IDPConnectorTest {
         assertThat(exception.getMessage(), is("Exception from IDP with status code 500 and message 'PersistenceException'"));
     }
 
+    @Test
+    void testAuthenticateAsync() {
+        assertThat(connector.authenticateAsync("test", "test", "test").toCompletableFuture().join(), is(false));
+        assertThat(connector.authenticateAsync("realuser", "realgroup", "realpassword").toCompletableFuture().join(), is(true));
+    }
+
+    @Test
+    void authorizeAsyncHasRights() {
+        IDPConnector.RightSet rightSet = connector.lookupRightAsync("realuser", "realgroup", "realpassword")
+                .toCompletableFuture().join();
+
+        assertThat(rightSet.hasRight("POSTHUS", "READ"), is(true));
+        assertThat(rightSet.hasRight("POSTHUS", "WRITE"), is(false));
+    }
+
+    @Test
+    void testAsyncExceptionHandling() {
+        final CompletionException exception = assertThrows(
+                CompletionException.class,
+                () -> connector.lookupRightAsync("error", "error", "error").toCompletableFuture().join()
+        );
+
+        assertThat(exception.getCause() instanceof IDPConnectorException, is(true));
+        assertThat(exception.getCause().getMessage(), is("Exception from IDP with status code 500 and message 'PersistenceException'"));
+    }
+
+    @Test
+    void openCircuitBreakerFailsFast() {
+        final IDPConnector breakingConnector = newConnector(new IDPConnectorSettings()
+                .withCacheAge(Duration.ZERO)
+                .withCircuitBreakerFailureThreshold(1)
+                .withCircuitBreakerDelay(Duration.ofMinutes(1)));
+
+        assertThrows(IDPConnectorException.class, () -> breakingConnector.lookupRight("error", "error", "error"));
+        assertThrows(IDPConnectorUnavailableException.class,
+                () -> breakingConnector.lookupRight("realuser", "realgroup", "realpassword"));
+    }
+
+    @Test
+    void pooledTransport() throws IDPConnectorException {
+        final IDPConnector pooledConnector = IDPConnectorFactory.create(wireMockHost, new IDPConnectorSettings()
+                .withCacheAge(Duration.ZERO)
+                .withConnectionPoolSize(4));
+        try {
+            for (int i = 0; i < 8; i++) {
+                assertThat(pooledConnector.lookupRight("realuser", "realgroup", "realpassword")
+                        .hasRight("POSTHUS", "READ"), is(true));
+            }
+        } finally {
+            pooledConnector.close();
+        }
+    }
+
+    @Test
+    void lookupRightsAnswersEachDistinctTriple() {
+        final NetpunktTripleDTO realuser = triple("realuser", "realgroup", "realpassword");
+        final NetpunktTripleDTO test = triple("test", "test", "test");
+        final NetpunktTripleDTO error = triple("error", "error", "error");
+        final NetpunktTripleDTO empty = triple("", "group", "password");
+
+        final LookupRightsResult result = connector.lookupRights(
+                List.of(realuser, test, error, empty, triple("realuser", "realgroup", "realpassword")));
+
+        assertThat(result.getRights().size(), is(2));
+        assertThat(result.getRights().get(realuser).hasRight("POSTHUS", "READ"), is(true));
+        assertThat(result.getRights().get(test).rights.isEmpty(), is(true));
+        assertThat(result.getFailures().size(), is(2));
+        assertThat(result.getFailures().get(error).getMessage(),
+                is("Exception from IDP with status code 500 and message 'PersistenceException'"));
+        assertThat(result.getFailures().get(empty) instanceof IllegalArgumentException, is(true));
+    }
+
+    @Test
+    void lookupRightsRejectsNullTriples() {
+        assertThrows(IllegalArgumentException.class, () -> connector.lookupRights(
+                Arrays.asList(triple("realuser", "realgroup", "realpassword"), null)));
+    }
+
+    @Test
+    void serverErrorsAreRetried() {
+        final IDPConnector retryingConnector = newConnector(new IDPConnectorSettings()
+                .withCacheAge(Duration.ZERO).withRetryBackoff(Duration.ofMillis(10)));
+        wireMockServer.resetRequests();
+
+        final IDPConnectorException exception = assertThrows(IDPConnectorUnexpectedStatusCodeException.class,
+                () -> retryingConnector.lookupRight("error", "error", "error", Duration.ofSeconds(5)));
+
+        assertThat(((IDPConnectorUnexpectedStatusCodeException) exception).getStatusCode(), is(500));
+        verify(1 + IDPConnectorSettings.DEFAULT_MAX_RETRIES, new RequestPatternBuilder().withUrl("/api/v1/authorize/"));
+    }
+
+    private static NetpunktTripleDTO triple(String user, String group, String password) {
+        final NetpunktTripleDTO triple = new NetpunktTripleDTO();
+        triple.setUserIdAut(user);
+        triple.setAgencyId(group);
+        triple.setPasswordAut(password);
+        return triple;
+    }
+
+    // Connectors close their client, so each gets one of its own
+    private IDPConnector newConnector(IDPConnectorSettings settings) {
+        final IDPConnector newConnector = new IDPConnector(HttpClient.newClient(new ClientConfig()
+                .register(new JacksonFeature())), new UserAgent("IDPConnectorTest"), wireMockHost, settings);
+        connectors.add(newConnector);
+        return newConnector;
+    }
 }
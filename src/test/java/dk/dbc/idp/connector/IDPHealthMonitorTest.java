@@ -0,0 +1,93 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class IDPHealthMonitorTest {
+    private final AtomicLong ticker = new AtomicLong();
+    private final AtomicInteger probes = new AtomicInteger();
+    private final IDPHealthMonitor monitor =
+            new IDPHealthMonitor(Duration.ofNanos(100), probes::incrementAndGet, ticker::get);
+
+    @Test
+    void stateFollowsErrorRate() {
+        assertThat(monitor.snapshot().state, is(IDPHealthMonitor.State.UNKNOWN));
+
+        monitor.record(10, false);
+        assertThat(monitor.snapshot().state, is(IDPHealthMonitor.State.REACHABLE));
+
+        for (int i = 1; i < IDPHealthMonitor.MINIMUM_SAMPLES; i++) {
+            monitor.record(10, false);
+        }
+        assertThat(monitor.snapshot().state, is(IDPHealthMonitor.State.UNREACHABLE));
+
+        monitor.record(10, true);
+        assertThat(monitor.snapshot().state, is(IDPHealthMonitor.State.REACHABLE));
+    }
+
+    @Test
+    void occasionalFailuresLeaveIdpReachable() {
+        for (int i = 0; i < 20; i++) {
+            monitor.record(10, i % 3 != 0);
+        }
+        monitor.record(10, false);
+
+        assertThat(monitor.snapshot().state, is(IDPHealthMonitor.State.REACHABLE));
+    }
+
+    @Test
+    void snapshotHasErrorRateAndPercentiles() {
+        for (int i = 1; i <= 100; i++) {
+            monitor.record(i, i % 4 != 0);
+        }
+
+        final IDPHealthMonitor.Snapshot snapshot = monitor.snapshot();
+        assertThat(snapshot.requests, is(100));
+        assertThat(snapshot.errors, is(25));
+        assertThat(snapshot.errorRate(), is(0.25));
+        assertThat(snapshot.p50, is(Duration.ofNanos(50)));
+        assertThat(snapshot.p95, is(Duration.ofNanos(95)));
+        assertThat(snapshot.p99, is(Duration.ofNanos(99)));
+    }
+
+    @Test
+    void samplesOutsideWindowAreIgnored() {
+        monitor.record(10, false);
+        ticker.set(IDPHealthMonitor.WINDOW.toNanos());
+        monitor.record(20, true);
+
+        final IDPHealthMonitor.Snapshot snapshot = monitor.snapshot();
+        assertThat(snapshot.requests, is(1));
+        assertThat(snapshot.errors, is(0));
+    }
+
+    @Test
+    void probesOncePerIntervalWhenIdle() {
+        monitor.snapshot();
+        monitor.snapshot();
+        assertThat(probes.get(), is(1));
+
+        ticker.set(99);
+        monitor.snapshot();
+        assertThat(probes.get(), is(1));
+
+        ticker.set(100);
+        monitor.snapshot();
+        assertThat(probes.get(), is(2));
+    }
+
+    @Test
+    void doesNotProbeWhileRequestsAreObserved() {
+        ticker.set(1000);
+        monitor.record(10, true);
+        ticker.set(1050);
+        monitor.snapshot();
+        assertThat(probes.get(), is(0));
+    }
+}
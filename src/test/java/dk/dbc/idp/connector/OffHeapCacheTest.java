@@ -0,0 +1,113 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OffHeapCacheTest {
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    void storesAndReplacesValues() {
+        final OffHeapCache cache = new OffHeapCache(OffHeapCache.MINIMUM_SIZE, null, now::get);
+        assertThat(cache.get("key"), is(nullValue()));
+
+        cache.put("key", bytes("first"), Duration.ofMinutes(1));
+        assertThat(cache.get("key"), is(bytes("first")));
+
+        cache.put("key", bytes("second"), Duration.ofMinutes(1));
+        assertThat(cache.get("key"), is(bytes("second")));
+        assertThat(cache.size(), is(1L));
+    }
+
+    @Test
+    void valuesExpire() {
+        final OffHeapCache cache = new OffHeapCache(OffHeapCache.MINIMUM_SIZE, null, now::get);
+        cache.put("key", bytes("value"), Duration.ofSeconds(10));
+
+        now.addAndGet(9_999);
+        assertThat(cache.get("key"), is(bytes("value")));
+        now.addAndGet(1);
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(cache.size(), is(0L));
+    }
+
+    @Test
+    void oldestEntriesAreDroppedAtByteLimit() {
+        final OffHeapCache cache = new OffHeapCache(OffHeapCache.MINIMUM_SIZE, null, now::get);
+        final int count = 20_000;
+        for (int i = 0; i < count; i++) {
+            cache.put("key" + i, bytes("value" + i), Duration.ofMinutes(1));
+        }
+
+        assertThat(cache.size() < count, is(true));
+        assertThat(cache.get("key0"), is(nullValue()));
+        assertThat(cache.get("key" + (count - 1)), is(bytes("value" + (count - 1))));
+    }
+
+    @Test
+    void invalidationNotifiesListeners() {
+        final OffHeapCache cache = new OffHeapCache(OffHeapCache.MINIMUM_SIZE, null, now::get);
+        final List<String> invalidated = new ArrayList<>();
+        cache.subscribe(invalidated::add);
+        cache.put("key", bytes("value"), Duration.ofMinutes(1));
+
+        cache.invalidate("key");
+
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(invalidated, is(List.of("key")));
+    }
+
+    @Test
+    void invalidateIfRemovesMatchingKeys() {
+        final OffHeapCache cache = new OffHeapCache(OffHeapCache.MINIMUM_SIZE, null, now::get);
+        cache.put("authorize/user/group/1", bytes("a"), Duration.ofMinutes(1));
+        cache.put("authorize/other/group/2", bytes("b"), Duration.ofMinutes(1));
+        cache.put("authorize/user/agency/3", bytes("c"), Duration.ofMinutes(1));
+
+        assertThat(cache.invalidateIf("/group/", key -> key.contains("/user/")), is(1));
+        assertThat(cache.get("authorize/user/group/1"), is(nullValue()));
+        assertThat(cache.get("authorize/other/group/2"), is(bytes("b")));
+        assertThat(cache.get("authorize/user/agency/3"), is(bytes("c")));
+
+        cache.clear();
+        assertThat(cache.size(), is(0L));
+        assertThat(cache.get("authorize/other/group/2"), is(nullValue()));
+    }
+
+    @Test
+    void remoteCacheIsReadThroughAndKeptUpToDate() {
+        final InMemoryRemoteCache remoteCache = new InMemoryRemoteCache();
+        final OffHeapCache cache = new OffHeapCache(OffHeapCache.MINIMUM_SIZE, remoteCache, now::get);
+        final List<String> invalidated = new ArrayList<>();
+        cache.subscribe(invalidated::add);
+        remoteCache.put("shared", bytes("remote"), Duration.ofMinutes(1));
+
+        assertThat(cache.get("shared"), is(bytes("remote")));
+
+        cache.put("key", bytes("value"), Duration.ofMinutes(1));
+        assertThat(remoteCache.get("key"), is(bytes("value")));
+
+        remoteCache.invalidate("key");
+        assertThat(cache.get("key"), is(nullValue()));
+        assertThat(invalidated, is(List.of("key")));
+    }
+
+    @Test
+    void tooSmall() {
+        assertThrows(IllegalArgumentException.class, () -> new OffHeapCache(OffHeapCache.MINIMUM_SIZE - 1, null));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
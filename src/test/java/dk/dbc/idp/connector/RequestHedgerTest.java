@@ -0,0 +1,130 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RequestHedgerTest {
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final IDPHealthMonitor healthMonitor = new IDPHealthMonitor(Duration.ZERO, () -> {});
+    private final IDPConnectorMetrics.RequestMetrics requestMetrics = new IDPConnectorMetrics(null).request("authorize");
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void requestsAreNotHedgedWithoutEnoughLatencies() throws IDPConnectorException {
+        final RequestHedger hedger = hedger(1);
+
+        assertThat(hedger.execute(slowFirstAttempt(new AtomicBoolean()), requestMetrics), is("second"));
+        assertThat(attempts.get(), is(1));
+    }
+
+    @Test
+    void slowRequestIsHedgedAndAbandoned() throws IDPConnectorException {
+        recordLatencies();
+        final RequestHedger hedger = hedger(1);
+        final AtomicBoolean primaryInterrupted = new AtomicBoolean();
+
+        assertThat(hedger.execute(slowFirstAttempt(primaryInterrupted), requestMetrics), is("second"));
+        assertThat(attempts.get(), is(2));
+        awaitTrue(primaryInterrupted);
+    }
+
+    @Test
+    void failedHedgeWaitsForPrimary() throws IDPConnectorException {
+        recordLatencies();
+        final RequestHedger hedger = hedger(1);
+
+        final String answer = hedger.execute(abandoned -> {
+            if (attempts.incrementAndGet() == 1) {
+                sleep(200);
+                return "primary";
+            }
+            throw new IDPConnectorException("hedge failed");
+        }, requestMetrics);
+
+        assertThat(answer, is("primary"));
+    }
+
+    @Test
+    void bothFailing() {
+        recordLatencies();
+        final RequestHedger hedger = hedger(1);
+
+        assertThrows(IDPConnectorException.class, () -> hedger.execute(abandoned -> {
+            attempts.incrementAndGet();
+            sleep(50);
+            throw new IDPConnectorException("failed");
+        }, requestMetrics));
+    }
+
+    @Test
+    void hedgingStopsWhenBudgetIsSpent() throws IDPConnectorException {
+        recordLatencies();
+        final RequestHedger hedger = hedger(0.01);
+        int hedged = 0;
+        for (int i = 0; i < RequestHedger.RESERVE + 2; i++) {
+            attempts.set(0);
+            hedger.execute(abandoned -> {
+                if (attempts.incrementAndGet() == 1) {
+                    sleep(50);
+                }
+                return "answer";
+            }, requestMetrics);
+            hedged += attempts.get() - 1;
+        }
+        assertThat(hedged, is(RequestHedger.RESERVE));
+    }
+
+    private RequestHedger hedger(double budget) {
+        return new RequestHedger(executor, healthMonitor, 0.9, Duration.ofMillis(10), budget);
+    }
+
+    private void recordLatencies() {
+        for (int i = 0; i < RequestHedger.MINIMUM_SAMPLES; i++) {
+            healthMonitor.record(Duration.ofMillis(1).toNanos(), true);
+        }
+    }
+
+    private RequestHedger.Attempt<String> slowFirstAttempt(AtomicBoolean interrupted) {
+        return abandoned -> {
+            if (attempts.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    interrupted.set(abandoned.get());
+                    throw new IDPConnectorException("interrupted");
+                }
+            }
+            return "second";
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitTrue(AtomicBoolean flag) {
+        for (int i = 0; i < 100 && !flag.get(); i++) {
+            sleep(10);
+        }
+        assertThat(flag.get(), is(true));
+    }
+}
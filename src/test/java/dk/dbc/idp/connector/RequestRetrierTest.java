@@ -0,0 +1,138 @@
+package dk.dbc.idp.connector;
+
+import jakarta.ws.rs.ProcessingException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RequestRetrierTest {
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final IDPConnectorMetrics.RequestMetrics requestMetrics = new IDPConnectorMetrics(null).request("authorize");
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void failuresWithoutAnswerAreRetried() throws IDPConnectorException {
+        final RequestRetrier retrier = new RequestRetrier(2, Duration.ofMillis(1), 0.1);
+
+        assertThat(retrier.execute(() -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new ProcessingException("connection refused");
+            }
+            if (attempts.get() == 2) {
+                throw new IDPConnectorUnexpectedStatusCodeException("server error", 503);
+            }
+            return "answer";
+        }, Deadline.NONE, requestMetrics), is("answer"));
+        assertThat(attempts.get(), is(3));
+    }
+
+    @Test
+    void retriesAreLimited() {
+        final RequestRetrier retrier = new RequestRetrier(2, Duration.ofMillis(1), 0.1);
+
+        assertThrows(IDPConnectorUnexpectedStatusCodeException.class, () -> retrier.execute(() -> {
+            attempts.incrementAndGet();
+            throw new IDPConnectorUnexpectedStatusCodeException("server error", 500);
+        }, Deadline.NONE, requestMetrics));
+        assertThat(attempts.get(), is(3));
+    }
+
+    @Test
+    void otherFailuresAreNotRetried() {
+        final RequestRetrier retrier = new RequestRetrier(2, Duration.ofMillis(1), 0.1);
+
+        assertThrows(IDPConnectorUnavailableException.class, () -> retrier.execute(() -> {
+            attempts.incrementAndGet();
+            throw new IDPConnectorUnavailableException("circuit breaker is open");
+        }, Deadline.NONE, requestMetrics));
+        assertThrows(IDPConnectorUnexpectedStatusCodeException.class, () -> retrier.execute(() -> {
+            attempts.incrementAndGet();
+            throw new IDPConnectorUnexpectedStatusCodeException("bad request", 400);
+        }, Deadline.NONE, requestMetrics));
+        assertThat(attempts.get(), is(2));
+    }
+
+    @Test
+    void budgetStopsRetriesWhenEverythingFails() {
+        final RequestRetrier retrier = new RequestRetrier(1, Duration.ZERO, 0.1);
+
+        for (int i = 0; i < 100; i++) {
+            assertThrows(ProcessingException.class, () -> retrier.execute(() -> {
+                attempts.incrementAndGet();
+                throw new ProcessingException("connection refused");
+            }, Deadline.NONE, requestMetrics));
+        }
+        // At most the reserve, and a tenth of a retry per request
+        final int retries = attempts.get() - 100;
+        assertThat(retries > RequestRetrier.RESERVE && retries <= RequestRetrier.RESERVE + 10, is(true));
+    }
+
+    @Test
+    void retryPassingDeadlineIsNotMade() {
+        final RequestRetrier retrier = new RequestRetrier(2, Duration.ofSeconds(10), 1);
+
+        // The backoff is random, but never longer than the deadline after a few tries
+        for (int i = 0; i < 5; i++) {
+            attempts.set(0);
+            final Deadline deadline = Deadline.after(Duration.ofNanos(1));
+            assertThrows(ProcessingException.class, () -> retrier.execute(() -> {
+                attempts.incrementAndGet();
+                throw new ProcessingException("connection refused");
+            }, deadline, requestMetrics));
+            assertThat(attempts.get(), is(1));
+        }
+    }
+
+    @Test
+    void attemptOutlivingDeadlineIsNotRetried() {
+        final RequestRetrier retrier = new RequestRetrier(2, Duration.ZERO, 1);
+        final Deadline deadline = Deadline.after(Duration.ofMillis(10));
+
+        assertThrows(ProcessingException.class, () -> retrier.execute(() -> {
+            attempts.incrementAndGet();
+            while (!deadline.isExpired()) {
+                Thread.onSpinWait();
+            }
+            throw new ProcessingException("read timed out");
+        }, deadline, requestMetrics));
+        assertThat(attempts.get(), is(1));
+    }
+
+    @Test
+    void deadlineAbandonsSlowAttempt() {
+        final Deadline deadline = Deadline.after(Duration.ofMillis(50));
+        final AtomicBoolean abandoned = new AtomicBoolean();
+
+        assertThrows(IDPConnectorTimeoutException.class, () -> deadline.run(executor, flag -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                abandoned.set(flag.get());
+            }
+            return "too late";
+        }));
+        awaitTrue(abandoned);
+    }
+
+    private static void awaitTrue(AtomicBoolean flag) {
+        final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!flag.get() && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertThat(flag.get(), is(true));
+    }
+}
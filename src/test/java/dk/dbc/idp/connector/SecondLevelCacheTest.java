@@ -0,0 +1,174 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class SecondLevelCacheTest {
+    private final InMemoryRemoteCache remoteCache = new InMemoryRemoteCache();
+    private final CacheKey key = new CacheKey.Factory().create("user", "group", "password");
+    private final AtomicLong millis = new AtomicLong(System.currentTimeMillis());
+
+    @Test
+    void valuesAreSharedBetweenConnectors() {
+        final SecondLevelCache first = new SecondLevelCache(remoteCache, Duration.ofHours(1));
+        final SecondLevelCache second = new SecondLevelCache(remoteCache, Duration.ofHours(1));
+
+        first.putAuthorization(key, authorization());
+
+        final SecondLevelCache.Hit<Authorization> hit = second.getAuthorization(key);
+        assertThat(hit.value.getRights(), is(authorization().getRights()));
+        assertThat(hit.value.getAgencyId(), is("group"));
+        assertThat(second.getAuthenticateResponse(key), is(nullValue()));
+    }
+
+    @Test
+    void sharedValuesKeepTheirMaxAgeAndValidators() {
+        final SecondLevelCache first = new SecondLevelCache(remoteCache, Duration.ofHours(1));
+        final SecondLevelCache second = new SecondLevelCache(remoteCache, Duration.ofHours(1));
+        final CacheDirectives directives = new CacheDirectives(Duration.ofMinutes(1), null, "Wed, 21 Oct 2015 07:28:00 GMT");
+
+        first.putAuthorization(key, authorization().withDirectives(directives));
+
+        final CacheDirectives shared = second.getAuthorization(key).value.getDirectives();
+        assertThat(shared.getMaxAge(), is(Duration.ofMinutes(1)));
+        assertThat(shared.conditionalHeaders(), is(directives.conditionalHeaders()));
+    }
+
+    @Test
+    void invalidationReachesAllSubscribers() {
+        final SecondLevelCache first = new SecondLevelCache(remoteCache, Duration.ofHours(1));
+        final SecondLevelCache second = new SecondLevelCache(remoteCache, Duration.ofHours(1));
+        final List<CacheKey> invalidated = new ArrayList<>();
+        second.subscribe(invalidated::add);
+        first.putAuthorization(key, authorization());
+
+        first.invalidate(key);
+
+        assertThat(second.getAuthorization(key), is(nullValue()));
+        assertThat(invalidated, is(List.of(key, key)));
+    }
+
+    @Test
+    void invalidatedValuesOfAnyReplicaAreMisses() {
+        final SecondLevelCache first = replica(remoteCache, 0);
+        final SecondLevelCache second = replica(remoteCache, 0);
+        final CacheKey other = new CacheKey.Factory().create("other", "group", "password");
+        first.putAuthorization(key, authorization());
+        first.putAuthorization(other, authorization());
+
+        millis.addAndGet(2);
+        second.invalidateUser("user", "group");
+        assertThat(first.getAuthorization(key), is(nullValue()));
+        assertThat(first.getAuthorization(other).value.getAgencyId(), is("group"));
+
+        second.invalidateGroup("group");
+        // Seen by the invalidating replica at once, by others once their copy of the marker expires
+        assertThat(second.getAuthorization(other), is(nullValue()));
+        millis.addAndGet(SecondLevelCache.MARKER_CACHE_AGE.toMillis());
+        assertThat(first.getAuthorization(other), is(nullValue()));
+
+        millis.addAndGet(SecondLevelCache.MAX_CLOCK_SKEW.toMillis() + 1);
+        first.putAuthorization(key, authorization());
+        assertThat(second.getAuthorization(key).value.getAgencyId(), is("group"));
+
+        millis.addAndGet(2);
+        second.invalidateAll();
+        millis.addAndGet(SecondLevelCache.MARKER_CACHE_AGE.toMillis());
+        assertThat(first.getAuthorization(key), is(nullValue()));
+    }
+
+    @Test
+    void invalidationHoldsForReplicasWithSkewedClocks() {
+        final SecondLevelCache invalidating = replica(remoteCache, 0);
+        final SecondLevelCache lagging = replica(remoteCache, -SecondLevelCache.MAX_CLOCK_SKEW.toMillis() / 2);
+
+        invalidating.invalidateGroup("group");
+        millis.addAndGet(10);
+        lagging.putAuthorization(key, authorization());
+
+        assertThat(invalidating.getAuthorization(key), is(nullValue()));
+    }
+
+    @Test
+    void markersAreLookedUpOncePerMarkerCacheAge() {
+        final AtomicInteger lookups = new AtomicInteger();
+        final SecondLevelCache cache = replica(new InMemoryRemoteCache() {
+            @Override
+            public byte[] get(String key) {
+                lookups.incrementAndGet();
+                return super.get(key);
+            }
+        }, 0);
+        cache.putAuthorization(key, authorization());
+
+        for (int i = 0; i < 10; i++) {
+            cache.getAuthorization(key);
+        }
+        assertThat(lookups.get(), is(10 + 3));
+
+        millis.addAndGet(SecondLevelCache.MARKER_CACHE_AGE.toMillis());
+        cache.getAuthorization(key);
+        assertThat(lookups.get(), is(11 + 6));
+    }
+
+    @Test
+    void failingRemoteCacheIsAMiss() {
+        final SecondLevelCache cache = new SecondLevelCache(new FailingRemoteCache(), Duration.ofHours(1));
+
+        cache.putAuthorization(key, authorization());
+        assertThat(cache.getAuthorization(key), is(nullValue()));
+    }
+
+    @Test
+    void zeroTimeToLiveDisablesRemoteCache() {
+        final SecondLevelCache cache = new SecondLevelCache(remoteCache, Duration.ZERO);
+
+        cache.putAuthorization(key, authorization());
+        assertThat(cache.isEnabled(), is(false));
+        assertThat(remoteCache.size(), is(0));
+    }
+
+    // A replica with a clock offset from the shared one by skew milliseconds
+    private SecondLevelCache replica(RemoteCache remote, long skew) {
+        return new SecondLevelCache(remote, Duration.ofHours(1),
+                () -> millis.get() + skew, () -> TimeUnit.MILLISECONDS.toNanos(millis.get()));
+    }
+
+    private static Authorization authorization() {
+        final IDPRights right = new IDPRights();
+        right.setProductName("POSTHUS");
+        right.setName("READ");
+        return new Authorization(true, "group", "identity", IDPConnector.RightSet.of(List.of(right)));
+    }
+
+    private static class FailingRemoteCache implements RemoteCache {
+        @Override
+        public byte[] get(String key) {
+            throw new IllegalStateException("unavailable");
+        }
+
+        @Override
+        public void put(String key, byte[] value, Duration timeToLive) {
+            throw new IllegalStateException("unavailable");
+        }
+
+        @Override
+        public void invalidate(String key) {
+            throw new IllegalStateException("unavailable");
+        }
+
+        @Override
+        public void subscribe(Consumer<String> listener) {}
+    }
+}
@@ -0,0 +1,90 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SingleFlightTest {
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    void concurrentCallsShareResult() throws InterruptedException {
+        final CompletableFuture<String> gate = new CompletableFuture<>();
+        final ConcurrentLinkedQueue<Object> results = new ConcurrentLinkedQueue<>();
+        final List<Thread> threads = startCallers(4, gate, results);
+
+        gate.complete("value");
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(calls.get(), is(1));
+        assertThat(List.copyOf(results), is(List.of("value", "value", "value", "value")));
+        assertThat(singleFlight.inFlight("key"), is(nullValue()));
+    }
+
+    @Test
+    void concurrentCallsShareException() throws InterruptedException {
+        final IDPConnectorException exception = new IDPConnectorException("failed");
+        final CompletableFuture<String> gate = new CompletableFuture<>();
+        final ConcurrentLinkedQueue<Object> results = new ConcurrentLinkedQueue<>();
+        final List<Thread> threads = startCallers(3, gate, results);
+
+        gate.completeExceptionally(exception);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(calls.get(), is(1));
+        assertThat(results.size(), is(3));
+        for (Object result : results) {
+            assertThat(result, sameInstance(exception));
+        }
+    }
+
+    @Test
+    void failedCallIsNotRemembered() throws IDPConnectorException {
+        assertThrows(IDPConnectorException.class, () -> singleFlight.execute("key", () -> {
+            throw new IDPConnectorException("failed");
+        }));
+
+        assertThat(singleFlight.execute("key", () -> "value"), is("value"));
+    }
+
+    private List<Thread> startCallers(int count, CompletableFuture<String> gate, ConcurrentLinkedQueue<Object> results)
+            throws InterruptedException {
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    results.add(singleFlight.execute("key", () -> {
+                        calls.incrementAndGet();
+                        return SingleFlight.await(gate);
+                    }));
+                } catch (IDPConnectorException e) {
+                    results.add(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        // all callers are parked, either on the gate or on the pending call
+        for (Thread thread : threads) {
+            while (thread.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+        return threads;
+    }
+}
@@ -0,0 +1,35 @@
+package dk.dbc.idp.connector;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class WeakInternerTest {
+    @Test
+    void equalValuesShareOneInstance() {
+        final WeakInterner<List<String>> interner = new WeakInterner<>();
+        final List<String> first = interner.intern(List.of("a", "b"));
+
+        assertThat(interner.intern(List.of("a", "b")), is(sameInstance(first)));
+        assertThat(interner.intern(List.of("b", "a")), is(not(sameInstance(first))));
+        assertThat(interner.size(), is(2));
+    }
+
+    @Test
+    void equalRightSetsAreCanonical() throws Exception {
+        final String json = "{\"authenticated\":true,\"agencyId\":\"123456\",\"rights\":["
+                + "{\"productName\":\"NETPUNKT\",\"name\":\"READ\",\"description\":\"first\"}]}";
+        final String other = "{\"authenticated\":true,\"agencyId\":\"654321\",\"rights\":["
+                + "{\"productName\":\"NETPUNKT\",\"name\":\"READ\",\"description\":\"second\"}]}";
+
+        final Authorization first = AuthorizationDecoder.decode(json.getBytes());
+        final Authorization second = AuthorizationDecoder.decode(other.getBytes());
+
+        assertThat(second.getRights(), is(sameInstance(first.getRights())));
+    }
+}